@@ -78,6 +78,17 @@ def generator=(generator) # :nodoc:
         :object_nl      => "\n",
         :array_nl       => "\n"
       )
+      const_set :DUMP_STATE_PROTOTYPE, State.new(
+        :allow_nan      => true,
+        :max_nesting    => false
+      )
+      if defined?(::JSON::Ext::Generator) and generator == ::JSON::Ext::Generator
+        # the Java generator never writes to a frozen state, so each of
+        # these can be shared by all calls, on all threads
+        for const in %w[SAFE FAST PRETTY DUMP]
+          const_get("#{const}_STATE_PROTOTYPE").freeze
+        end
+      end
     ensure
       $VERBOSE = old
     end
@@ -143,8 +154,22 @@ class MissingUnicodeSupport < JSONError; end
   # * *create_additions*: If set to false, the Parser doesn't create
   #   additions even if a matchin class and create_id was found. This option
   #   defaults to true.
-  # * *object_class*: Defaults to Hash
+  # * *object_class*: Defaults to Hash. JSON::Ext::CompactHash builds frozen,
+  #   memory-compact objects instead (Java extension only).
   # * *array_class*: Defaults to Array
+  # * *numeric_arrays*: If set to true, arrays made only of integers or only
+  #   of floats are parsed into frozen JSON::Ext::NumericArray objects, which
+  #   store their elements unboxed (Java extension only).
+  # * *record_class*: A Struct subclass; objects at _record_depth_ are parsed
+  #   straight into instances of it, skipping keys that are not members
+  #   (Java extension only).
+  # * *record_types*: A Hash mapping members of _record_class_ to Integer,
+  #   Float or String, which number values are then built as; other values
+  #   than null or ones of that type raise a ParserError.
+  # * *record_depth*: The nesting depth of the objects parsed as records.
+  #   Defaults to 1 (the top-level object).
+  # * *proc*: Called with each parsed value as soon as it is complete,
+  #   children before their containers (Java extension only).
   def parse(source, opts = {})
     Parser.new(source, opts).parse
   end
@@ -194,13 +219,19 @@ def parse!(source, opts = {})
   # * *max_nesting*: The maximum depth of nesting allowed in the data
   #   structures from which JSON is to be generated. Disable depth checking
   #   with :max_nesting => false, it defaults to 19.
+  # * *into*: a String to append the JSON document to, which is then
+  #   returned instead of a new String. Reusing a buffer this way saves
+  #   allocating a new one for every document.
   #
   # See also the fast_generate for the fastest creation method with the least
   # amount of sanity checks, and the pretty_generate method for some
   # defaults for a pretty output.
   def generate(obj, opts = nil)
-    state = SAFE_STATE_PROTOTYPE.dup
-    if opts
+    state = SAFE_STATE_PROTOTYPE
+    into = nil
+    if State === opts
+      state = opts
+    elsif opts
       if opts.respond_to? :to_hash
         opts = opts.to_hash
       elsif opts.respond_to? :to_h
@@ -208,9 +239,20 @@ def generate(obj, opts = nil)
       else
         raise TypeError, "can't convert #{opts.class} into Hash"
       end
-      state = state.configure(opts)
+      into = opts[:into]
+      state = state.dup.configure(opts)
+    elsif !state.frozen?
+      state = state.dup
+    end
+    if into
+      if state.respond_to?(:generate_to)
+        state.generate_to(obj, into)
+      else
+        into << state.generate(obj)
+      end
+    else
+      state.generate(obj)
     end
-    state.generate(obj)
   end
 
   # :stopdoc:
@@ -226,7 +268,7 @@ def generate(obj, opts = nil)
   # *WARNING*: Be careful not to pass any Ruby data structures with circles as
   # _obj_ argument, because this will cause JSON to go into an infinite loop.
   def fast_generate(obj, opts = nil)
-    state = FAST_STATE_PROTOTYPE.dup
+    state = FAST_STATE_PROTOTYPE
     if opts
       if opts.respond_to? :to_hash
         opts = opts.to_hash
@@ -235,7 +277,9 @@ def fast_generate(obj, opts = nil)
       else
         raise TypeError, "can't convert #{opts.class} into Hash"
       end
-      state.configure(opts)
+      state = state.dup.configure(opts)
+    elsif !state.frozen?
+      state = state.dup
     end
     state.generate(obj)
   end
@@ -253,7 +297,7 @@ def fast_generate(obj, opts = nil)
   # The _opts_ argument can be used to configure the generator, see the
   # generate method for a more detailed explanation.
   def pretty_generate(obj, opts = nil)
-    state = PRETTY_STATE_PROTOTYPE.dup
+    state = PRETTY_STATE_PROTOTYPE
     if opts
       if opts.respond_to? :to_hash
         opts = opts.to_hash
@@ -262,7 +306,9 @@ def pretty_generate(obj, opts = nil)
       else
         raise TypeError, "can't convert #{opts.class} into Hash"
       end
-      state.configure(opts)
+      state = state.dup.configure(opts)
+    elsif !state.frozen?
+      state = state.dup
     end
     state.generate(obj)
   end
@@ -288,7 +334,12 @@ def load(source, proc = nil)
     else
       source = source.read
     end
-    result = parse(source, :max_nesting => false, :allow_nan => true)
+    opts = { :max_nesting => false, :allow_nan => true }
+    if proc and defined?(::JSON::Ext::Parser) and Parser <= ::JSON::Ext::Parser
+      # the Java parser calls proc itself as it goes
+      return parse(source, opts.merge(:proc => proc))
+    end
+    result = parse(source, opts)
     recurse_proc(result, &proc) if proc
     result
   end
@@ -330,12 +381,22 @@ def dump(obj, anIO = nil, limit = nil)
       end
     end
     limit ||= 0
-    result = generate(obj, :allow_nan => true, :max_nesting => limit)
+    state = DUMP_STATE_PROTOTYPE
+    if limit != 0
+      state = state.dup.configure(:allow_nan => true, :max_nesting => limit)
+    elsif !state.frozen?
+      state = state.dup
+    end
     if anIO
-      anIO.write result
+      if state.respond_to?(:generate_to)
+        # the Java generator writes large documents out in chunks
+        state.generate_to(obj, anIO)
+      else
+        anIO.write state.generate(obj)
+      end
       anIO
     else
-      result
+      state.generate(obj)
     end
   rescue JSON::NestingError
     raise ArgumentError, "exceed depth limit"
@@ -389,10 +389,14 @@ def to_json(state = nil, *args)
           # included.
           module Extend
             # Raw Strings are JSON Objects (the raw bytes are stored in an
-            # array for the key "raw"). The Ruby String can be created by this
-            # module method.
+            # array for the key "raw", or Base64-encoded for the key "raw64").
+            # The Ruby String can be created by this module method.
             def json_create(o)
-              o['raw'].pack('C*')
+              if raw64 = o['raw64']
+                raw64.unpack('m').first
+              else
+                o['raw'].pack('C*')
+              end
             end
           end
 
@@ -417,6 +421,22 @@ def to_json_raw_object
           def to_json_raw(*args)
             to_json_raw_object.to_json(*args)
           end
+
+          # Like to_json_raw_object, but the raw bytes are stored
+          # Base64-encoded in a single String for the key "raw64", which is
+          # much more compact than an array of numbers.
+          def to_json_raw64_object
+            {
+              JSON.create_id  => self.class.name,
+              'raw64'         => [self].pack('m').delete("\n"),
+            }
+          end
+
+          # This method creates a JSON text from the result of
+          # a call to to_json_raw64_object of this String.
+          def to_json_raw64(*args)
+            to_json_raw64_object.to_json(*args)
+          end
         end
 
         module TrueClass
@@ -0,0 +1,297 @@
+/*
+ * This code is copyrighted work by Daniel Luz <dev at mernen dot com>.
+ *
+ * Distributed under the Ruby and GPLv2 licenses; see COPYING and GPL files
+ * for details.
+ */
+package json.ext;
+
+import org.jruby.Ruby;
+import org.jruby.RubyArray;
+import org.jruby.RubyClass;
+import org.jruby.RubyHash;
+import org.jruby.RubyObject;
+import org.jruby.RubyString;
+import org.jruby.anno.JRubyMethod;
+import org.jruby.runtime.Block;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+
+/**
+ * The <code>JSON::Ext::CompactHash</code> class.
+ *
+ * <p>A read-only, Hash-compatible container built by the parser when
+ * <code>:object_class => JSON::Ext::CompactHash</code> is given. Its pairs
+ * are kept in two packed arrays, in insertion order; objects with more than
+ * {@link #INDEX_THRESHOLD} pairs additionally get a linear-probing index of
+ * positions into those arrays. This takes a fraction of the memory used by
+ * a {@link RubyHash}, which allocates an entry object per pair plus its
+ * bucket table.
+ *
+ * <p>Instances are frozen; {@link #to_hash} returns a regular, mutable Hash
+ * copy.
+ *
+ * @author mernen
+ */
+public class CompactHash extends RubyObject {
+    /**
+     * Objects up to this size are looked up by linear search, which is faster
+     * than hashing at that size and needs no index.
+     */
+    static final int INDEX_THRESHOLD = 8;
+
+    private final IRubyObject[] keys;
+    private final IRubyObject[] values;
+    /**
+     * Open-addressing table of positions (plus one) on {@link #keys},
+     * or <code>null</code> for small objects. Its length is a power of two
+     * at least twice the number of pairs.
+     */
+    private final int[] index;
+
+    private CompactHash(Ruby runtime, RubyClass metaClass,
+                        IRubyObject[] keys, IRubyObject[] values, int[] index) {
+        super(runtime, metaClass);
+        this.keys = keys;
+        this.values = values;
+        this.index = index;
+        setFrozen(true);
+    }
+
+    /**
+     * Builds a new CompactHash from the pairs stored on the given array,
+     * alternating keys and values, between <code>start</code> and
+     * <code>end</code>. As in a Hash, later pairs replace the value of
+     * earlier ones with the same key.
+     */
+    static CompactHash newCompactHash(Ruby runtime, RubyClass metaClass,
+                                      IRubyObject[] pairs, int start, int end) {
+        int capacity = (end - start) / 2;
+        IRubyObject[] keys = new IRubyObject[capacity];
+        IRubyObject[] values = new IRubyObject[capacity];
+        int[] index = capacity > INDEX_THRESHOLD
+                      ? new int[tableSizeFor(capacity)] : null;
+
+        int size = 0;
+        for (int i = start; i < end; i += 2) {
+            IRubyObject key = pairs[i];
+            if (key instanceof RubyString && !key.isFrozen()) {
+                key.setFrozen(true);
+            }
+            int pos = find(keys, size, index, key);
+            if (pos == -1) {
+                keys[size] = key;
+                values[size] = pairs[i + 1];
+                if (index != null) addToIndex(index, key, size);
+                size++;
+            } else {
+                values[pos] = pairs[i + 1];
+            }
+        }
+
+        if (size < capacity) {
+            // duplicated keys found; trim the arrays to the actual size
+            IRubyObject[] newKeys = new IRubyObject[size];
+            IRubyObject[] newValues = new IRubyObject[size];
+            System.arraycopy(keys, 0, newKeys, 0, size);
+            System.arraycopy(values, 0, newValues, 0, size);
+            keys = newKeys;
+            values = newValues;
+        }
+        return new CompactHash(runtime, metaClass, keys, values, index);
+    }
+
+    private static int tableSizeFor(int size) {
+        int tableSize = 1;
+        while (tableSize < size * 2) tableSize <<= 1;
+        return tableSize;
+    }
+
+    private static void addToIndex(int[] index, IRubyObject key, int pos) {
+        int mask = index.length - 1;
+        int slot = key.hashCode() & mask;
+        while (index[slot] != 0) slot = (slot + 1) & mask;
+        index[slot] = pos + 1;
+    }
+
+    /**
+     * Returns the position of the given key among the first
+     * <code>size</code> keys, or <code>-1</code> if it is not there.
+     */
+    private static int find(IRubyObject[] keys, int size, int[] index,
+                            IRubyObject key) {
+        if (index == null) {
+            for (int i = 0; i < size; i++) {
+                if (sameKey(keys[i], key)) return i;
+            }
+            return -1;
+        }
+        int mask = index.length - 1;
+        for (int slot = key.hashCode() & mask; index[slot] != 0;
+                slot = (slot + 1) & mask) {
+            int pos = index[slot] - 1;
+            if (sameKey(keys[pos], key)) return pos;
+        }
+        return -1;
+    }
+
+    private static boolean sameKey(IRubyObject a, IRubyObject b) {
+        return a == b || a.eql(b);
+    }
+
+    public int size() {
+        return keys.length;
+    }
+
+    public IRubyObject getKey(int i) {
+        return keys[i];
+    }
+
+    public IRubyObject getValue(int i) {
+        return values[i];
+    }
+
+    /**
+     * Calls the given visitor for each pair, in insertion order.
+     */
+    public void visitAll(RubyHash.Visitor visitor) {
+        for (int i = 0; i < keys.length; i++) {
+            visitor.visit(keys[i], values[i]);
+        }
+    }
+
+    /**
+     * Returns the value stored under the given key, or <code>null</code> if
+     * there is none.
+     */
+    public IRubyObject fastARef(IRubyObject key) {
+        int pos = find(keys, keys.length, index, key);
+        return pos == -1 ? null : values[pos];
+    }
+
+    @JRubyMethod(name = "[]", required = 1)
+    public IRubyObject op_aref(ThreadContext context, IRubyObject key) {
+        IRubyObject value = fastARef(key);
+        return value == null ? context.getRuntime().getNil() : value;
+    }
+
+    @JRubyMethod(required = 1, optional = 1, frame = true)
+    public IRubyObject fetch(ThreadContext context, IRubyObject[] args,
+                             Block block) {
+        IRubyObject value = fastARef(args[0]);
+        if (value != null) return value;
+        if (block.isGiven()) return block.yield(context, args[0]);
+        if (args.length > 1) return args[1];
+        throw context.getRuntime().newIndexError("key not found");
+    }
+
+    @JRubyMethod(name = {"key?", "has_key?", "include?", "member?"},
+                 required = 1)
+    public IRubyObject has_key_p(ThreadContext context, IRubyObject key) {
+        return context.getRuntime().newBoolean(fastARef(key) != null);
+    }
+
+    @JRubyMethod
+    public RubyArray keys(ThreadContext context) {
+        return context.getRuntime().newArray(keys);
+    }
+
+    @JRubyMethod
+    public RubyArray values(ThreadContext context) {
+        return context.getRuntime().newArray(values);
+    }
+
+    @JRubyMethod(name = {"size", "length"})
+    public IRubyObject size(ThreadContext context) {
+        return context.getRuntime().newFixnum(keys.length);
+    }
+
+    @JRubyMethod(name = "empty?")
+    public IRubyObject empty_p(ThreadContext context) {
+        return context.getRuntime().newBoolean(keys.length == 0);
+    }
+
+    @JRubyMethod(name = {"each", "each_pair"}, frame = true)
+    public IRubyObject each(ThreadContext context, Block block) {
+        Ruby runtime = context.getRuntime();
+        if (!block.isGiven()) {
+            return callMethod(context, "enum_for", runtime.newSymbol("each"));
+        }
+        for (int i = 0; i < keys.length; i++) {
+            block.yield(context, runtime.newArray(keys[i], values[i]));
+        }
+        return this;
+    }
+
+    /**
+     * <code>CompactHash#to_hash</code>
+     *
+     * <p>Returns a new, regular {@link RubyHash Hash} with the same pairs.
+     */
+    @JRubyMethod(name = {"to_hash", "to_h"})
+    public RubyHash to_hash(ThreadContext context) {
+        RubyHash result = RubyHash.newHash(context.getRuntime());
+        for (int i = 0; i < keys.length; i++) {
+            result.fastASet(keys[i], values[i]);
+        }
+        return result;
+    }
+
+    /**
+     * <code>CompactHash#==</code>
+     *
+     * <p>Compares the pairs with those of another CompactHash or Hash, as
+     * <code>Hash#==</code> does. Since this class defines
+     * <code>to_hash</code>, <code>Hash#==</code> defers to this method
+     * when given a CompactHash, so the comparison holds both ways; only
+     * runtimes older than JRuby 1.6 lack that, and need the CompactHash on
+     * the left.
+     */
+    @JRubyMethod(name = "==", required = 1)
+    public IRubyObject op_equal(ThreadContext context, IRubyObject other) {
+        return compare(context, "==", other);
+    }
+
+    /**
+     * <code>CompactHash#eql?</code>
+     *
+     * <p>Like {@link #op_equal ==}, but compares the values with
+     * <code>eql?</code>, as <code>Hash#eql?</code> does (which likewise
+     * defers to this method since JRuby 1.6).
+     */
+    @JRubyMethod(name = "eql?", required = 1)
+    public IRubyObject eql_p(ThreadContext context, IRubyObject other) {
+        return compare(context, "eql?", other);
+    }
+
+    /**
+     * <code>CompactHash#hash</code>
+     *
+     * <p>Returns the hash code of the equivalent Hash, consistent with
+     * {@link #eql_p eql?}, so that a CompactHash finds the entry of an
+     * equal Hash key (and, since JRuby 1.6, the other way around).
+     */
+    @JRubyMethod
+    public IRubyObject hash(ThreadContext context) {
+        return to_hash(context).callMethod(context, "hash");
+    }
+
+    private IRubyObject compare(ThreadContext context, String method,
+                                IRubyObject other) {
+        if (other == this) return context.getRuntime().getTrue();
+        if (other instanceof CompactHash) {
+            other = ((CompactHash)other).to_hash(context);
+        }
+        return to_hash(context).callMethod(context, method, other);
+    }
+
+    @JRubyMethod(name = {"inspect", "to_s"})
+    public IRubyObject inspect(ThreadContext context) {
+        return to_hash(context).inspect(context);
+    }
+
+    @JRubyMethod(rest = true)
+    public IRubyObject to_json(ThreadContext context, IRubyObject[] args) {
+        return to_hash(context).callMethod(context, "to_json", args);
+    }
+}
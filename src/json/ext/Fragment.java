@@ -0,0 +1,287 @@
+/*
+ * This code is copyrighted work by Daniel Luz <dev at mernen dot com>.
+ *
+ * Distributed under the Ruby and GPLv2 licenses; see COPYING and GPL files
+ * for details.
+ */
+package json.ext;
+
+import org.jruby.Ruby;
+import org.jruby.RubyClass;
+import org.jruby.RubyObject;
+import org.jruby.RubyString;
+import org.jruby.anno.JRubyMethod;
+import org.jruby.runtime.ObjectAllocator;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.Visibility;
+import org.jruby.runtime.builtin.IRubyObject;
+import org.jruby.util.ByteList;
+import org.jruby.util.StringSupport;
+
+/**
+ * The <code>JSON::Ext::Fragment</code> class.
+ *
+ * <p>A piece of already generated JSON, such as a cached sub-document, to
+ * be embedded as is in a larger document. The generator appends its bytes
+ * verbatim wherever it appears as a value, instead of parsing it back into
+ * Ruby objects and generating those again.
+ *
+ * <p>The JSON text is not checked unless <code>:validate => true</code> is
+ * given to {@link #initialize}; an invalid fragment makes the surrounding
+ * document invalid as well.
+ *
+ * @author mernen
+ */
+public class Fragment extends RubyObject {
+    /** The JSON text, in UTF-8 */
+    private ByteList json;
+
+    static final ObjectAllocator ALLOCATOR = new ObjectAllocator() {
+        public IRubyObject allocate(Ruby runtime, RubyClass klazz) {
+            return new Fragment(runtime, klazz);
+        }
+    };
+
+    public Fragment(Ruby runtime, RubyClass metaClass) {
+        super(runtime, metaClass);
+    }
+
+    /**
+     * <code>Fragment#initialize(json, opts = {})</code>
+     *
+     * <p>Wraps the given JSON text, which is copied (and transcoded to
+     * UTF-8 if needed), and freezes the new Fragment. If <code>opts</code>
+     * has a true <code>:validate</code> key, the text must be a single
+     * valid JSON value (possibly surrounded by white space), or a
+     * <code>JSON::ParserError</code> is raised.
+     */
+    @JRubyMethod(required=1, optional=1, visibility=Visibility.PRIVATE)
+    public IRubyObject initialize(ThreadContext context, IRubyObject[] args) {
+        RubyString source = toUtf8(context, args[0].convertToString());
+        RuntimeInfo info = RuntimeInfo.forRuntime(context.getRuntime());
+        OptionsReader opts =
+            new OptionsReader(context, args.length > 1 ? args[1] : null);
+        if (opts.getBool("validate", false)) {
+            ByteList bytes = source.getByteList();
+            boolean valid = isValid(bytes);
+            if (valid && info.encodingsSupported()) {
+                valid = StringSupport.codeRangeScan(bytes.getEncoding(), bytes)
+                        != StringSupport.CR_BROKEN;
+            }
+            if (!valid) {
+                throw Utils.newException(context, Utils.M_PARSER_ERROR,
+                        "invalid JSON fragment");
+            }
+        }
+        json = source.getByteList().dup();
+        setFrozen(true);
+        return this;
+    }
+
+    /**
+     * Returns the JSON text, which must not be modified.
+     */
+    ByteList getJson() {
+        return json;
+    }
+
+    /**
+     * Returns the JSON text of the given Fragment or String, in UTF-8,
+     * without checking it. The result must not be modified.
+     */
+    static ByteList jsonBytes(ThreadContext context, IRubyObject json) {
+        if (json instanceof Fragment) return ((Fragment)json).getJson();
+        return toUtf8(context, json.convertToString()).getByteList();
+    }
+
+    private static RubyString toUtf8(ThreadContext context, RubyString source) {
+        RuntimeInfo info = RuntimeInfo.forRuntime(context.getRuntime());
+        if (info.encodingsSupported() && source.encoding(context) != info.utf8) {
+            return (RubyString)source.encode(context, info.utf8);
+        }
+        return source;
+    }
+
+    @JRubyMethod(name = {"to_s", "to_str"})
+    public RubyString to_s(ThreadContext context) {
+        return context.getRuntime().newString(json);
+    }
+
+    /**
+     * <code>Fragment#to_json(*)</code>
+     *
+     * <p>Returns the JSON text, for generators that do not know about
+     * fragments.
+     */
+    @JRubyMethod(rest = true)
+    public RubyString to_json(ThreadContext context, IRubyObject[] args) {
+        return to_s(context);
+    }
+
+    /**
+     * Returns whether the given bytes are a single JSON value (possibly
+     * surrounded by white space). This only checks the syntax, without
+     * building anything, and walks nested arrays and objects on an
+     * explicit stack, so any depth is accepted.
+     */
+    static boolean isValid(ByteList source) {
+        byte[] bytes = source.unsafeBytes();
+        int end = source.begin() + source.length();
+        // the open containers, as their opening brackets
+        byte[] stack = new byte[16];
+        int depth = 0;
+
+        int p = skipSpace(bytes, source.begin(), end);
+        while (true) {
+            // a value is expected at p
+            if (p == end) return false;
+            byte c = bytes[p];
+            if (c == '[' || c == '{') {
+                p = skipSpace(bytes, p + 1, end);
+                if (p < end && bytes[p] == (c == '[' ? ']' : '}')) {
+                    p++;
+                } else {
+                    if (depth == stack.length) {
+                        byte[] newStack = new byte[stack.length * 2];
+                        System.arraycopy(stack, 0, newStack, 0, depth);
+                        stack = newStack;
+                    }
+                    stack[depth++] = c;
+                    if (c == '{' && (p = skipKey(bytes, p, end)) < 0) {
+                        return false;
+                    }
+                    continue;
+                }
+            } else {
+                p = skipScalar(bytes, p, end);
+                if (p < 0) return false;
+            }
+
+            // a value has just ended; close any containers ending with it
+            while (true) {
+                p = skipSpace(bytes, p, end);
+                if (depth == 0) return p == end;
+                if (p == end) return false;
+                byte open = stack[depth - 1];
+                if (bytes[p] == (open == '[' ? ']' : '}')) {
+                    depth--;
+                    p++;
+                    continue;
+                }
+                if (bytes[p] != ',') return false;
+                p = skipSpace(bytes, p + 1, end);
+                if (open == '{' && (p = skipKey(bytes, p, end)) < 0) {
+                    return false;
+                }
+                break;
+            }
+        }
+    }
+
+    private static int skipSpace(byte[] bytes, int p, int end) {
+        while (p < end) {
+            byte c = bytes[p];
+            if (c != ' ' && c != '\t' && c != '\n' && c != '\r') break;
+            p++;
+        }
+        return p;
+    }
+
+    /**
+     * Skips an object key, the colon after it and any white space up to the
+     * value. Returns the position of the value, or <code>-1</code> if the
+     * syntax is wrong.
+     */
+    private static int skipKey(byte[] bytes, int p, int end) {
+        if (p == end || bytes[p] != '"') return -1;
+        p = skipString(bytes, p, end);
+        if (p < 0) return -1;
+        p = skipSpace(bytes, p, end);
+        if (p == end || bytes[p] != ':') return -1;
+        return skipSpace(bytes, p + 1, end);
+    }
+
+    /**
+     * Skips a string, number or literal, returning the position after it,
+     * or <code>-1</code> if there is none.
+     */
+    private static int skipScalar(byte[] bytes, int p, int end) {
+        switch (bytes[p]) {
+        case '"':
+            return skipString(bytes, p, end);
+        case 't':
+            return skipLiteral(bytes, p, end, "true");
+        case 'f':
+            return skipLiteral(bytes, p, end, "false");
+        case 'n':
+            return skipLiteral(bytes, p, end, "null");
+        default:
+            return skipNumber(bytes, p, end);
+        }
+    }
+
+    private static int skipLiteral(byte[] bytes, int p, int end,
+                                   String literal) {
+        int length = literal.length();
+        if (end - p < length) return -1;
+        for (int i = 0; i < length; i++) {
+            if (bytes[p + i] != literal.charAt(i)) return -1;
+        }
+        return p + length;
+    }
+
+    private static int skipString(byte[] bytes, int p, int end) {
+        p++; // opening quote
+        while (p < end) {
+            int c = bytes[p++] & 0xff;
+            if (c == '"') return p;
+            if (c < 0x20) return -1;
+            if (c != '\\') continue;
+            if (p == end) return -1;
+            switch (bytes[p++]) {
+            case '"': case '\\': case '/':
+            case 'b': case 'f': case 'n': case 'r': case 't':
+                break;
+            case 'u':
+                if (end - p < 4) return -1;
+                for (int i = 0; i < 4; i++) {
+                    if (Character.digit(bytes[p++], 16) < 0) return -1;
+                }
+                break;
+            default:
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    private static int skipNumber(byte[] bytes, int p, int end) {
+        if (bytes[p] == '-') p++;
+        if (p == end) return -1;
+        if (bytes[p] == '0') {
+            p++;
+        } else {
+            int start = p;
+            p = skipDigits(bytes, p, end);
+            if (p == start) return -1;
+        }
+        if (p < end && bytes[p] == '.') {
+            int start = ++p;
+            p = skipDigits(bytes, p, end);
+            if (p == start) return -1;
+        }
+        if (p < end && (bytes[p] == 'e' || bytes[p] == 'E')) {
+            p++;
+            if (p < end && (bytes[p] == '+' || bytes[p] == '-')) p++;
+            int start = p;
+            p = skipDigits(bytes, p, end);
+            if (p == start) return -1;
+        }
+        return p;
+    }
+
+    private static int skipDigits(byte[] bytes, int p, int end) {
+        while (p < end && bytes[p] >= '0' && bytes[p] <= '9') p++;
+        return p;
+    }
+}
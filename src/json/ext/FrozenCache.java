@@ -0,0 +1,209 @@
+/*
+ * This code is copyrighted work by Daniel Luz <dev at mernen dot com>.
+ *
+ * Distributed under the Ruby and GPLv2 licenses; see COPYING and GPL files
+ * for details.
+ */
+package json.ext;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jruby.Ruby;
+import org.jruby.RubyArray;
+import org.jruby.RubyClass;
+import org.jruby.RubyFloat;
+import org.jruby.RubyHash;
+import org.jruby.RubySymbol;
+import org.jruby.runtime.builtin.IRubyObject;
+
+/**
+ * The generated JSON of deeply frozen Hashes, Arrays and Strings, by
+ * object identity, for states with the <code>:frozen_cache</code> option.
+ *
+ * <p>Objects are held weakly, so caching them doesn't keep them alive. A
+ * cache holding {@link #MAX_ENTRIES} is emptied, so that it refills with
+ * the objects currently in use, as the key caches are. Objects found not to
+ * be cacheable (not deeply frozen, or holding anything other than plain
+ * data) are remembered as such, so they are only checked once.
+ *
+ * <p>Instances are shared by all threads of a runtime, and safe to use
+ * from any number of them without locking.
+ */
+final class FrozenCache {
+    static final int MAX_ENTRIES = 1024;
+    /** Documents larger than this are not kept */
+    static final int MAX_ENTRY_SIZE = 1 << 20;
+    /**
+     * Strings shorter than this are not looked up: escaping them again is
+     * cheaper than the lookup.
+     */
+    static final int MIN_STRING_SIZE = 128;
+
+    /**
+     * What is known of a cached object: how deeply its containers nest,
+     * and its JSON form for each <code>ascii_only</code> setting, if it was
+     * generated yet.
+     */
+    static final class Entry {
+        /** The entry of objects that can't be cached */
+        static final Entry NOT_CACHEABLE = new Entry(-1, null, null);
+
+        final int height;
+        private final byte[] json;
+        private final byte[] asciiOnlyJson;
+
+        Entry(int height, byte[] json, byte[] asciiOnlyJson) {
+            this.height = height;
+            this.json = json;
+            this.asciiOnlyJson = asciiOnlyJson;
+        }
+
+        boolean isCacheable() {
+            return height >= 0;
+        }
+
+        byte[] getJson(boolean asciiOnly) {
+            return asciiOnly ? asciiOnlyJson : json;
+        }
+
+        Entry withJson(boolean asciiOnly, byte[] newJson) {
+            return asciiOnly ? new Entry(height, json, newJson)
+                             : new Entry(height, newJson, asciiOnlyJson);
+        }
+    }
+
+    /**
+     * A weak reference compared by the identity of its referent.
+     */
+    private static final class IdentityKey
+            extends WeakReference<IRubyObject> {
+        private final int hash;
+
+        IdentityKey(IRubyObject object, ReferenceQueue<IRubyObject> queue) {
+            super(object, queue);
+            this.hash = System.identityHashCode(object);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (this == other) return true;
+            if (!(other instanceof IdentityKey)) return false;
+            IRubyObject referent = get();
+            return referent != null && referent == ((IdentityKey)other).get();
+        }
+    }
+
+    private final ReferenceQueue<IRubyObject> queue =
+        new ReferenceQueue<IRubyObject>();
+    private final Map<IdentityKey, Entry> entries =
+        new ConcurrentHashMap<IdentityKey, Entry>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    Entry get(IRubyObject object) {
+        return entries.get(new IdentityKey(object, null));
+    }
+
+    void put(IRubyObject object, Entry entry) {
+        expunge();
+        if (entries.size() >= MAX_ENTRIES) entries.clear();
+        entries.put(new IdentityKey(object, queue), entry);
+    }
+
+    void countHit() {
+        hits.incrementAndGet();
+    }
+
+    void countMiss() {
+        misses.incrementAndGet();
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    int size() {
+        expunge();
+        return entries.size();
+    }
+
+    void clear() {
+        entries.clear();
+        hits.set(0);
+        misses.set(0);
+    }
+
+    /**
+     * Drops the entries of collected objects.
+     */
+    private void expunge() {
+        Object key;
+        while ((key = queue.poll()) != null) entries.remove(key);
+    }
+
+    /**
+     * Returns how deeply the containers of the given object nest (0 for a
+     * String), or <code>-1</code> if its JSON form can't be cached: it must
+     * be frozen, untainted, and made only of frozen Hashes, frozen Arrays,
+     * frozen Strings, Integers, finite Floats, <code>true</code>,
+     * <code>false</code> and <code>nil</code>, of those exact classes
+     * (Hash keys may also be Symbols).
+     */
+    static int height(final Ruby runtime, IRubyObject object) {
+        RubyClass metaClass = object.getMetaClass();
+        if (metaClass == runtime.getFixnum() || metaClass == runtime.getBignum()
+                || object.isNil() || object == runtime.getTrue()
+                || object == runtime.getFalse()) {
+            return 0;
+        }
+        if (metaClass == runtime.getFloat()) {
+            double value = ((RubyFloat)object).getDoubleValue();
+            return Double.isNaN(value) || Double.isInfinite(value) ? -1 : 0;
+        }
+        if (!object.isFrozen() || object.isTaint() || object.isUntrusted()) {
+            return -1;
+        }
+        if (metaClass == runtime.getString()) return 0;
+        if (metaClass == runtime.getArray()) {
+            int height = 0;
+            RubyArray array = (RubyArray)object;
+            for (int i = 0, t = array.getLength(); i < t; i++) {
+                int h = height(runtime, array.eltInternal(i));
+                if (h < 0) return -1;
+                if (h > height) height = h;
+            }
+            return height + 1;
+        }
+        if (metaClass == runtime.getHash()) {
+            final int[] result = {0};
+            ((RubyHash)object).visitAll(new RubyHash.Visitor() {
+                @Override
+                public void visit(IRubyObject key, IRubyObject value) {
+                    if (result[0] < 0) return;
+                    int h = height(runtime, value);
+                    if (h < 0 || !(key instanceof RubySymbol)
+                                 && height(runtime, key) != 0) {
+                        result[0] = -1;
+                    } else if (h > result[0]) {
+                        result[0] = h;
+                    }
+                }
+            });
+            return result[0] < 0 ? -1 : result[0] + 1;
+        }
+        return -1;
+    }
+}
@@ -6,19 +6,43 @@
  */
 package json.ext;
 
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.jcodings.Encoding;
+import org.jcodings.specific.ISO8859_1Encoding;
+import org.jcodings.specific.UTF16BEEncoding;
+import org.jcodings.specific.UTF16LEEncoding;
+import org.jcodings.specific.UTF8Encoding;
 import org.jruby.Ruby;
 import org.jruby.RubyArray;
 import org.jruby.RubyBignum;
 import org.jruby.RubyBoolean;
 import org.jruby.RubyClass;
+import org.jruby.RubyEnumerable;
 import org.jruby.RubyFixnum;
 import org.jruby.RubyFloat;
 import org.jruby.RubyHash;
 import org.jruby.RubyNumeric;
 import org.jruby.RubyString;
+import org.jruby.RubyStruct;
+import org.jruby.RubySymbol;
+import org.jruby.anno.JRubyMethod;
+import org.jruby.exceptions.RaiseException;
+import org.jruby.runtime.Block;
+import org.jruby.runtime.BlockCallback;
 import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.callsite.CacheEntry;
 import org.jruby.runtime.builtin.IRubyObject;
 import org.jruby.util.ByteList;
+import org.jruby.util.StringSupport;
 
 public final class Generator {
     private Generator() {
@@ -33,7 +57,12 @@ private Generator() {
                          Handler<? super T> handler, IRubyObject[] args) {
         Session session = new Session(context, args.length > 0 ? args[0]
                                                                : null);
-        return session.infect(handler.generateNew(session, object));
+        try {
+            return session.infect(handler.generateNew(session, object));
+        } catch (RaiseException e) {
+            session.leaveNestingErrorDepth();
+            throw e;
+        }
     }
 
     /**
@@ -42,8 +71,15 @@ private Generator() {
      */
     static <T extends IRubyObject> RubyString
             generateJson(ThreadContext context, T object, IRubyObject[] args) {
-        Handler<? super T> handler = getHandlerFor(context.getRuntime(), object);
-        return generateJson(context, object, handler, args);
+        Session session = new Session(context, args.length > 0 ? args[0]
+                                                               : null);
+        Handler<? super T> handler = getHandlerFor(session, object);
+        try {
+            return session.infect(handler.generateNew(session, object));
+        } catch (RaiseException e) {
+            session.leaveNestingErrorDepth();
+            throw e;
+        }
     }
 
     /**
@@ -54,8 +90,90 @@ private Generator() {
             generateJson(ThreadContext context, T object,
                          GeneratorState config) {
         Session session = new Session(context, config);
-        Handler<? super T> handler = getHandlerFor(context.getRuntime(), object);
-        return handler.generateNew(session, object);
+        Handler<? super T> handler = getHandlerFor(session, object);
+        try {
+            return handler.generateNew(session, object);
+        } catch (RaiseException e) {
+            session.leaveNestingErrorDepth();
+            throw e;
+        }
+    }
+
+    /**
+     * Encodes the given object as JSON, handing the output over to the given
+     * sink in chunks as it is generated.
+     *
+     * <p>Only arrays and objects (and Enumerators, with the
+     * <code>:enumerables</code> option) are generated in chunks; anything
+     * else (including objects with their own <code>to_json</code>) is
+     * generated whole, as by {@link GeneratorState#generate}, and then
+     * written.
+     */
+    static <T extends IRubyObject> void
+            generateJson(ThreadContext context, T object,
+                         GeneratorState config, GeneratorSink sink) {
+        Session session = new Session(context, config);
+        Handler<? super T> handler = getHandlerFor(session, object);
+        if (!generatesContainer(handler)) {
+            RubyString result = (RubyString)config.generate(context, object);
+            sink.write(context, result.getByteList());
+            return;
+        }
+        session.sink = sink;
+        ByteList buffer = new ByteList(sink.getChunkSize() * 2);
+        try {
+            handler.generate(session, object, buffer);
+        } catch (RaiseException e) {
+            session.leaveNestingErrorDepth();
+            throw e;
+        }
+        if (buffer.length() != 0) sink.write(context, buffer);
+    }
+
+    /**
+     * Encodes the given object as JSON, appending it to the given String.
+     *
+     * <p>Arrays and objects (and Enumerators, with the
+     * <code>:enumerables</code> option) are generated straight into the
+     * String's own buffer; anything else is generated whole, as by
+     * {@link GeneratorState#generate}, and then appended. If generation
+     * fails, the String is left as it was.
+     */
+    static <T extends IRubyObject> void
+            generateJson(ThreadContext context, T object,
+                         GeneratorState config, RubyString target) {
+        Session session = new Session(context, config);
+        Handler<? super T> handler = getHandlerFor(session, object);
+        if (!generatesContainer(handler)) {
+            RubyString result = (RubyString)config.generate(context, object);
+            target.cat(result.getByteList());
+            target.infectBy(result);
+            return;
+        }
+        target.modify();
+        ByteList buffer = target.getByteList();
+        int start = buffer.length();
+        boolean done = false;
+        try {
+            handler.generate(session, object, buffer);
+            done = true;
+        } catch (RaiseException e) {
+            session.leaveNestingErrorDepth();
+            throw e;
+        } finally {
+            if (!done) buffer.setRealSize(start);
+        }
+        target.clearCodeRange();
+        session.infect(target);
+    }
+
+    /**
+     * Returns whether the given handler generates a JSON array or object.
+     */
+    private static boolean generatesContainer(Handler<?> handler) {
+        return handler instanceof ContainerHandler
+            || handler instanceof ObjectSerializer
+            || handler == ENUMERABLE_HANDLER;
     }
 
     /**
@@ -65,8 +183,17 @@ private Generator() {
     // the best I could get and ignore the warnings
     @SuppressWarnings("unchecked")
     private static <T extends IRubyObject>
-            Handler<? super T> getHandlerFor(Ruby runtime, T object) {
+            Handler<? super T> getHandlerFor(Session session, T object) {
+        Ruby runtime = session.getRuntime();
         RubyClass metaClass = object.getMetaClass();
+        if (object.isFrozen() && session.usesFrozenCache()
+                && (metaClass == runtime.getHash()
+                    || metaClass == runtime.getArray()
+                    || metaClass == runtime.getString()
+                       && ((RubyString)object).getByteList().length()
+                          >= FrozenCache.MIN_STRING_SIZE)) {
+            return (Handler)FROZEN_HANDLER;
+        }
         if (metaClass == runtime.getString()) return (Handler)STRING_HANDLER;
         if (metaClass == runtime.getFixnum()) return (Handler)FIXNUM_HANDLER;
         if (metaClass == runtime.getHash())   return (Handler)HASH_HANDLER;
@@ -76,9 +203,127 @@ Handler<? super T> getHandlerFor(Ruby runtime, T object) {
         if (object == runtime.getFalse())     return (Handler)FALSE_HANDLER;
         if (metaClass == runtime.getFloat())  return (Handler)FLOAT_HANDLER;
         if (metaClass == runtime.getBignum()) return (Handler)BIGNUM_HANDLER;
+        if (object instanceof CompactHash)    return (Handler)COMPACT_HASH_HANDLER;
+        if (object instanceof NumericArray)   return (Handler)NUMERIC_ARRAY_HANDLER;
+        if (object instanceof Fragment)       return (Handler)FRAGMENT_HANDLER;
+        if (object instanceof RubyString || object instanceof RubyHash
+                || object instanceof RubyArray || object instanceof RubyFloat
+                || object instanceof RubyBignum) {
+            return (Handler)getSubclassHandler(session, metaClass, object);
+        }
+        Map<RubyClass, ObjectSerializer> serializers =
+            session.getInfo().serializers;
+        if (!serializers.isEmpty()) {
+            ObjectSerializer serializer =
+                serializers.get(metaClass.getRealClass());
+            if (serializer != null) return serializer;
+        }
+        if (session.getState().generatesEnumerables()
+                && isPlainEnumerator(runtime, metaClass, object)) {
+            return ENUMERABLE_HANDLER;
+        }
         return GENERIC_HANDLER;
     }
 
+    /**
+     * Returns whether the given object is an Enumerator (including lazy
+     * ones, and <code>Enumerable::Enumerator</code> in 1.8 mode), and left
+     * to the default <code>Object#to_json</code>, which would generate it
+     * as a String. Other Enumerables, such as Structs, Ranges, Sets or IOs,
+     * are not generated as arrays.
+     */
+    private static boolean isPlainEnumerator(Ruby runtime, RubyClass metaClass,
+                                             IRubyObject object) {
+        RubyClass enumerator = runtime.getEnumerator();
+        return enumerator != null && enumerator.isInstance(object)
+            && metaClass.searchMethod("to_json")
+               == runtime.getObject().searchMethod("to_json");
+    }
+
+    /**
+     * The handler chosen for a subclass of a core class, along with the
+     * lookup of <code>to_json</code> it was based on.
+     */
+    static final class SubclassHandler {
+        final Handler<IRubyObject> handler;
+        /**
+         * The lookup is only weakly referenced: the method found may belong
+         * to the subclass itself, which would then be kept alive by its own
+         * entry in the (weak-keyed) cache. The class's method cache holds
+         * the lookup for as long as the class is in use.
+         */
+        private final WeakReference<CacheEntry> toJson;
+
+        SubclassHandler(Handler<IRubyObject> handler, CacheEntry toJson) {
+            this.handler = handler;
+            this.toJson = new WeakReference<CacheEntry>(toJson);
+        }
+
+        /**
+         * Returns whether the choice still holds for the given class, that
+         * is, whether none of its methods changed since.
+         */
+        boolean isValidFor(RubyClass metaClass) {
+            CacheEntry entry = toJson.get();
+            return entry != null && CacheEntry.typeOk(entry, metaClass);
+        }
+    }
+
+    /**
+     * Returns the handler for an instance of a subclass of String, Hash,
+     * Array, Float or Bignum: the core class's own handler, unless the
+     * subclass (or the object's singleton class) overrides
+     * <code>to_json</code>, in which case that is called.
+     *
+     * <p>The choice is cached per class in the {@link RuntimeInfo}, and
+     * made again once any method of the class changes, as with JRuby's own
+     * call site caches.
+     */
+    private static Handler<IRubyObject> getSubclassHandler(Session session,
+            RubyClass metaClass, IRubyObject object) {
+        Map<RubyClass, SubclassHandler> cache =
+            session.getInfo().subclassHandlers;
+        SubclassHandler entry;
+        synchronized (cache) {
+            entry = cache.get(metaClass);
+        }
+        if (entry != null && entry.isValidFor(metaClass)) {
+            return entry.handler;
+        }
+
+        Ruby runtime = session.getRuntime();
+        RubyClass baseClass;
+        Handler<?> handler;
+        if (object instanceof RubyString) {
+            baseClass = runtime.getString();
+            handler = STRING_HANDLER;
+        } else if (object instanceof RubyHash) {
+            baseClass = runtime.getHash();
+            handler = HASH_HANDLER;
+        } else if (object instanceof RubyArray) {
+            baseClass = runtime.getArray();
+            handler = ARRAY_HANDLER;
+        } else if (object instanceof RubyFloat) {
+            baseClass = runtime.getFloat();
+            handler = FLOAT_HANDLER;
+        } else {
+            baseClass = runtime.getBignum();
+            handler = BIGNUM_HANDLER;
+        }
+        CacheEntry toJson = metaClass.searchWithCache("to_json");
+        if (toJson.method != baseClass.searchMethod("to_json")) {
+            handler = GENERIC_HANDLER;
+        }
+        @SuppressWarnings("unchecked")
+        Handler<IRubyObject> result = (Handler<IRubyObject>)handler;
+        if (!metaClass.isSingleton()) {
+            synchronized (cache) {
+                cache.put(metaClass, new SubclassHandler(result, toJson));
+            }
+        }
+        return result;
+    }
+
 
     /* Generator context */
 
@@ -99,6 +344,40 @@ static class Session {
         private IRubyObject possibleState;
         private RuntimeInfo info;
         private StringEncoder stringEncoder;
+        private byte[] numberScratch;
+        private GeneratorState.Layout layout;
+        /** Where to write complete chunks, if generating in chunks */
+        private GeneratorSink sink;
+        /** The number of chunks written to the sink so far */
+        private int flushes = 0;
+        /** The current nesting depth, starting at the state's */
+        private int depth;
+        /**
+         * The depth at which the state's <code>max_nesting</code> was
+         * exceeded, or <code>-1</code>
+         */
+        private int nestingErrorDepth = -1;
+        /**
+         * The state passed to <code>#to_json</code> methods when the
+         * session's own state is frozen (see {@link #callWithState})
+         */
+        private GeneratorState callState;
+        /**
+         * Whether this session generates a range of elements on a worker
+         * thread (see {@link #generateInParallel}), and so must not call
+         * back into Ruby code
+         */
+        private boolean worker = false;
+        /**
+         * Set once any of the ranges generated alongside this worker's
+         * fails, so that the others stop too
+         */
+        private AtomicBoolean aborted;
+        /**
+         * Whether an object is being generated for the frozen cache, whose
+         * elements are then not looked up on their own
+         */
+        private boolean fillingFrozenCache = false;
 
         private boolean tainted = false;
         private boolean untrusted = false;
@@ -106,6 +385,7 @@ static class Session {
         Session(ThreadContext context, GeneratorState state) {
             this.context = context;
             this.state = state;
+            this.depth = state.getDepth();
         }
 
         Session(ThreadContext context, IRubyObject possibleState) {
@@ -125,15 +405,126 @@ public Ruby getRuntime() {
         public GeneratorState getState() {
             if (state == null) {
                 state = GeneratorState.fromState(context, getInfo(), possibleState);
+                depth = state.getDepth();
             }
             return state;
         }
 
+        int getDepth() {
+            getState();
+            return depth;
+        }
+
+        /**
+         * Enters a nested array or object.
+         * @return The new depth
+         * @throws RaiseException <code>NestingError</code> if the state's
+         *                        <code>max_nesting</code> is exceeded
+         */
+        int increaseDepth() {
+            int maxNesting = getState().getMaxNesting();
+            if (maxNesting != 0 && depth >= maxNesting) {
+                nestingErrorDepth = depth;
+                throw Utils.newException(context, Utils.M_NESTING_ERROR,
+                        "nesting of " + depth + " is too deep");
+            }
+            return ++depth;
+        }
+
+        /**
+         * Returns the depth at which the state's <code>max_nesting</code>
+         * was exceeded, or <code>-1</code> if it was not.
+         */
+        int getNestingErrorDepth() {
+            return nestingErrorDepth;
+        }
+
+        /**
+         * Leaves the depth at which <code>max_nesting</code> was exceeded
+         * on the state, as the generator always did, unless it is frozen.
+         * Only called by the entry points, on the calling thread, once the
+         * session has stopped: the state is never written to while it is
+         * generated from, possibly by worker threads as well.
+         */
+        void leaveNestingErrorDepth() {
+            if (nestingErrorDepth >= 0 && !state.isFrozen()) {
+                state.setDepth(nestingErrorDepth);
+            }
+        }
+
+        int decreaseDepth() {
+            return --depth;
+        }
+
+        /**
+         * Calls a generation method (<code>to_json</code> or
+         * <code>append_json</code>) of the given object, passing it a state
+         * that carries the current depth and the given output buffer.
+         *
+         * <p>The session's state is used for that if it can be written to,
+         * and restored afterwards; a frozen state is left alone, and a
+         * private copy of it is passed instead.
+         */
+        IRubyObject callWithState(IRubyObject object, String method,
+                                  ByteList buffer) {
+            if (worker) throw NOT_PLAIN_DATA;
+            GeneratorState state = getState();
+            if (state.isFrozen()) {
+                if (callState == null) callState = state.copy(context);
+                state = callState;
+            }
+            int previousDepth = state.getDepth();
+            ByteList previousBuffer = state.swapBuffer(buffer);
+            state.setDepth(depth);
+            try {
+                return object.callMethod(context, method, state);
+            } finally {
+                state.setDepth(previousDepth);
+                state.swapBuffer(previousBuffer);
+            }
+        }
+
         public RuntimeInfo getInfo() {
             if (info == null) info = RuntimeInfo.forRuntime(getRuntime());
             return info;
         }
 
+        /**
+         * Returns the layout of the output, as set by the state at the
+         * start of the session.
+         */
+        GeneratorState.Layout getLayout() {
+            if (layout == null) layout = getState().getLayout();
+            return layout;
+        }
+
+        /**
+         * Returns whether frozen objects are to be looked up in the
+         * runtime's {@link FrozenCache}. Only compact output is cached.
+         */
+        boolean usesFrozenCache() {
+            return !fillingFrozenCache && getState().cachesFrozen()
+                   && getLayout().compact;
+        }
+
+        /**
+         * Returns a scratch array for formatting numbers, large enough for
+         * any <code>long</code>.
+         */
+        byte[] getNumberScratch() {
+            if (numberScratch == null) numberScratch = new byte[20];
+            return numberScratch;
+        }
+
+        /**
+         * Returns the runtime's cache of escaped object keys for this
+         * session's <code>ascii_only</code> setting.
+         */
+        Map<Object, byte[]> getKeyCache() {
+            return getState().asciiOnly() ? getInfo().asciiOnlyKeyCache
+                                          : getInfo().keyCache;
+        }
+
         public StringEncoder getStringEncoder() {
             if (stringEncoder == null) {
                 stringEncoder = new StringEncoder(context, getState().asciiOnly());
@@ -146,6 +537,24 @@ public void infectBy(IRubyObject object) {
             if (object.isUntrusted()) untrusted = true;
         }
 
+        /**
+         * Hands the buffer contents over to the session's sink, if any,
+         * once they reach the sink's chunk size. Container handlers call this
+         * between their elements.
+         */
+        void flushIfFull(ByteList buffer) {
+            if (sink != null && buffer.length() >= sink.getChunkSize()) {
+                sink.write(context, buffer);
+                buffer.setRealSize(0);
+                flushes++;
+            }
+        }
+
+        void infectBy(Session other) {
+            if (other.tainted) tainted = true;
+            if (other.untrusted) untrusted = true;
+        }
+
         public <T extends IRubyObject> T infect(T object) {
             if (tainted) object.setTaint(true);
             if (untrusted) object.setUntrusted(true);
@@ -156,6 +565,20 @@ public <T extends IRubyObject> T infect(T object) {
 
     /* Handler base classes */
 
+    /**
+     * Each thread's reusable buffer for {@link Handler#generateNew}, or
+     * <code>null</code> while it is in use.
+     */
+    private static final ThreadLocal<ByteList> SCRATCH_BUFFER =
+        new ThreadLocal<ByteList>();
+    /**
+     * Scratch buffers that grew larger than this are dropped after use,
+     * rather than kept around by their thread. Documents generated into a
+     * new String are handed over in segments of this size as they grow
+     * past it (see {@link GeneratorSink.SegmentSink}).
+     */
+    static final int MAX_SCRATCH_SIZE = 1 << 20;
+
     private static abstract class Handler<T extends IRubyObject> {
         /**
          * Returns an estimative of how much space the serialization of the
@@ -167,9 +590,35 @@ int guessSize(Session session, T object) {
         }
 
         RubyString generateNew(Session session, T object) {
-            ByteList buffer = new ByteList(guessSize(session, object));
-            generate(session, object, buffer);
-            return RubyString.newString(session.getRuntime(), buffer);
+            // claim this thread's scratch buffer, if it is not already in
+            // use further up the stack (e.g. by a #to_json calling back
+            // into the generator), and copy out just the result
+            ByteList buffer = SCRATCH_BUFFER.get();
+            if (buffer == null) {
+                buffer = new ByteList(guessSize(session, object));
+            } else {
+                SCRATCH_BUFFER.set(null);
+                buffer.setRealSize(0);
+            }
+            // documents larger than a scratch buffer are collected in
+            // segments of about that size, rather than growing it further
+            GeneratorSink previousSink = session.sink;
+            GeneratorSink.SegmentSink segments =
+                new GeneratorSink.SegmentSink(MAX_SCRATCH_SIZE);
+            session.sink = segments;
+            try {
+                generate(session, object, buffer);
+                if (!segments.isEmpty()) {
+                    return segments.toRubyString(session.getRuntime(), buffer);
+                }
+                return RubyString.newString(session.getRuntime(),
+                        buffer.unsafeBytes(), buffer.begin(), buffer.length());
+            } finally {
+                session.sink = previousSink;
+                if (buffer.unsafeBytes().length <= MAX_SCRATCH_SIZE) {
+                    SCRATCH_BUFFER.set(buffer);
+                }
+            }
         }
 
         abstract void generate(Session session, T object, ByteList buffer);
@@ -209,10 +658,15 @@ void generate(Session session, T object, ByteList buffer) {
         new Handler<RubyBignum>() {
             @Override
             void generate(Session session, RubyBignum object, ByteList buffer) {
-                // JRUBY-4751: RubyBignum.to_s() returns generic object
-                // representation (fixed in 1.5, but we maintain backwards
-                // compatibility; call to_s(IRubyObject[]) then
-                buffer.append(((RubyString)object.to_s(IRubyObject.NULL_ARRAY)).getByteList());
+                // write the digits straight from the BigInteger, rather
+                // than through a temporary Ruby String (JRUBY-4751 also
+                // made RubyBignum.to_s() unreliable before 1.5)
+                String digits = object.getValue().toString();
+                int length = digits.length();
+                buffer.ensure(buffer.length() + length);
+                for (int i = 0; i < length; i++) {
+                    buffer.append((byte)digits.charAt(i));
+                }
             }
         };
 
@@ -220,7 +674,7 @@ void generate(Session session, RubyBignum object, ByteList buffer) {
         new Handler<RubyFixnum>() {
             @Override
             void generate(Session session, RubyFixnum object, ByteList buffer) {
-                buffer.append(object.to_s().getByteList());
+                appendLong(session, buffer, object.getLongValue());
             }
         };
 
@@ -228,139 +682,744 @@ void generate(Session session, RubyFixnum object, ByteList buffer) {
         new Handler<RubyFloat>() {
             @Override
             void generate(Session session, RubyFloat object, ByteList buffer) {
-                double value = RubyFloat.num2dbl(object);
+                appendDouble(session, buffer, object.getDoubleValue(), object);
+            }
+        };
 
-                if (Double.isInfinite(value) || Double.isNaN(value)) {
-                    if (!session.getState().allowNaN()) {
-                        throw Utils.newException(session.getContext(),
-                                Utils.M_GENERATOR_ERROR,
-                                object + " not allowed in JSON");
-                    }
+    /**
+     * Appends the given value as <code>Float#to_s</code> would, after
+     * checking it against the <code>allow_nan</code> setting.
+     * @param object The value as a Float, or <code>null</code> if it
+     *               needs to be created
+     */
+    private static void appendDouble(Session session, ByteList buffer,
+                                     double value, RubyFloat object) {
+        if (Double.isInfinite(value) || Double.isNaN(value)) {
+            if (object == null) {
+                object = RubyFloat.newFloat(session.getRuntime(), value);
+            }
+            if (!session.getState().allowNaN()) {
+                throw Utils.newException(session.getContext(),
+                        Utils.M_GENERATOR_ERROR,
+                        object + " not allowed in JSON");
+            }
+        } else if (appendShortDouble(session, buffer, value)) {
+            return;
+        }
+        if (object == null) {
+            object = RubyFloat.newFloat(session.getRuntime(), value);
+        }
+        buffer.append(((RubyString)object.to_s()).getByteList());
+    }
+
+    private static final double[] POW10 = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9,
+        1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18};
+
+    /**
+     * Appends the given finite value if it is short enough to be written
+     * in plain notation with at most 15 significant digits, and returns
+     * <code>true</code>; returns <code>false</code>, writing nothing,
+     * otherwise.
+     *
+     * <p>Depending on the Ruby version, <code>Float#to_s</code> either
+     * rounds to 15 significant digits or looks for the shortest digits that
+     * read back as the same value; for these values, both give the same
+     * result, which is found here without going through a String.
+     */
+    private static boolean appendShortDouble(Session session, ByteList buffer,
+                                             double value) {
+        if (value == 0.0) {
+            if (Double.doubleToRawLongBits(value) != 0) buffer.append('-');
+            buffer.append('0').append('.').append('0');
+            return true;
+        }
+        double abs = Math.abs(value);
+        if (abs < 1e-4 || abs >= 1e14) return false;
+        for (int scale = 0; scale < POW10.length; scale++) {
+            // try the nearest number with this many decimal places; as
+            // long as it has at most 15 digits, it is the only one with so
+            // few digits that reads back as the value, if it does at all
+            double digits = Math.rint(abs * POW10[scale]);
+            if (digits >= 1e15) return false;
+            if (digits / POW10[scale] != abs) continue;
+
+            long unscaled = (long)digits;
+            long whole = unscaled / (long)POW10[scale];
+            long fraction = unscaled % (long)POW10[scale];
+            if (value < 0) buffer.append('-');
+            appendLong(session, buffer, whole);
+            buffer.append('.');
+            if (fraction == 0) {
+                buffer.append('0');
+                return true;
+            }
+            while (fraction % 10 == 0) {
+                fraction /= 10;
+                scale--;
+            }
+            byte[] scratch = session.getNumberScratch();
+            for (int i = scale - 1; i >= 0; i--) {
+                scratch[i] = (byte)('0' + fraction % 10);
+                fraction /= 10;
+            }
+            buffer.append(scratch, 0, scale);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * The progress of a container (array or object) being generated.
+     */
+    static final class Frame {
+        final ContainerHandler<IRubyObject> handler;
+        final IRubyObject object;
+        final int size;
+        /** The position of the next element to generate */
+        int index = 0;
+        final GeneratorState.Layout layout;
+        /** The indentation of the elements */
+        final byte[] indent;
+        /** The indentation of the closing bracket */
+        final byte[] closingIndent;
+        /** The keys and values of an object, alternated */
+        IRubyObject[] pairs;
+
+        @SuppressWarnings("unchecked")
+        Frame(ContainerHandler<?> handler, IRubyObject object, int size,
+              GeneratorState.Layout layout, int depth) {
+            this.handler = (ContainerHandler<IRubyObject>)handler;
+            this.object = object;
+            this.size = size;
+            this.layout = layout;
+            this.indent = layout.indent(depth);
+            this.closingIndent = layout.indent(depth - 1);
+        }
+
+        /**
+         * Writes what comes before the next element, and returns that
+         * element, or <code>null</code> if it was written entirely.
+         */
+        IRubyObject beginElement(Session session, ByteList buffer) {
+            return handler.beginElement(session, this, buffer);
+        }
+
+        void end(Session session, ByteList buffer) {
+            handler.end(session, this, buffer);
+        }
+    }
+
+    /**
+     * Writes the opening of the given object and pushes its frame onto the
+     * stack, if it is a container. Returns <code>false</code>, writing
+     * nothing, if it is not.
+     */
+    @SuppressWarnings("unchecked")
+    static boolean beginContainer(Session session, IRubyObject object,
+                                  List<Frame> stack, ByteList buffer) {
+        Handler<IRubyObject> handler =
+            getHandlerFor(session, object);
+        if (!(handler instanceof ContainerHandler)) return false;
+        stack.add(((ContainerHandler<IRubyObject>)handler).begin(session,
+                object, buffer));
+        return true;
+    }
+
+    /**
+     * Generates an element on behalf of a frame: containers are begun (see
+     * {@link #beginContainer}), anything else is written whole.
+     */
+    static void generateElement(Session session, IRubyObject element,
+                                List<Frame> stack, ByteList buffer) {
+        if (!beginContainer(session, element, stack, buffer)) {
+            Handler<IRubyObject> handler =
+                getHandlerFor(session, element);
+            handler.generate(session, element, buffer);
+        }
+        session.infectBy(element);
+    }
+
+    /**
+     * A handler for containers, which can be generated either in one go or
+     * one element at a time (as {@link GeneratorOutput} does), by calling
+     * {@link #begin}, {@link #beginElement} for each element, and
+     * {@link #end}.
+     */
+    private static abstract class ContainerHandler<T extends IRubyObject>
+            extends Handler<T> {
+        abstract int size(T object);
+
+        /**
+         * Writes the opening of the container, and returns the frame to
+         * track the remaining work on it.
+         */
+        abstract Frame begin(Session session, T object, ByteList buffer);
+
+        /**
+         * Writes what comes before the next element of the frame, and returns
+         * that element, or <code>null</code> if it was written entirely.
+         */
+        abstract IRubyObject beginElement(Session session, Frame frame,
+                                          ByteList buffer);
+
+        /**
+         * Writes the closing of the container.
+         */
+        abstract void end(Session session, Frame frame, ByteList buffer);
+
+        @Override
+        void generate(Session session, T object, ByteList buffer) {
+            Frame frame = begin(session, object, buffer);
+            if (!generateInParallel(session, frame, buffer)) {
+                generateElements(session, frame, frame.size, buffer);
+            }
+            end(session, frame, buffer);
+        }
+    }
+
+    /**
+     * Generates the elements of a frame up to (not including) the given
+     * position.
+     */
+    private static void generateElements(Session session, Frame frame,
+                                         int end, ByteList buffer) {
+        while (frame.index < end) {
+            if (session.aborted != null && session.aborted.get()) {
+                throw RANGE_ABORTED;
+            }
+            IRubyObject element = frame.beginElement(session, buffer);
+            if (element != null) {
+                Handler<IRubyObject> handler = getHandlerFor(session, element);
+                handler.generate(session, element, buffer);
+                session.infectBy(element);
+            }
+            session.flushIfFull(buffer);
+        }
+    }
+
+
+    /* Parallel generation */
+
+    /**
+     * The fewest elements worth handing over to another thread.
+     */
+    static final int MIN_PARALLEL_RANGE = 1024;
+
+    private static final int PARALLELISM =
+        Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Thrown by worker sessions that come across an object with its own
+     * <code>to_json</code>, which can only be called on the thread that
+     * started the generation.
+     */
+    private static final class NotPlainDataException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public Throwable fillInStackTrace() {
+            return this;
+        }
+    }
+
+    private static final NotPlainDataException NOT_PLAIN_DATA =
+        new NotPlainDataException();
+
+    /**
+     * Thrown by worker sessions that stop early because another range of
+     * the same container failed.
+     */
+    private static final class RangeAbortedException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public Throwable fillInStackTrace() {
+            return this;
+        }
+    }
+
+    private static final RangeAbortedException RANGE_ABORTED =
+        new RangeAbortedException();
+
+    /**
+     * A range of the elements of a container, generated into a separate
+     * buffer by a session of its own.
+     */
+    private static final class ElementRange implements Callable<ElementRange> {
+        private final Ruby runtime;
+        private final GeneratorState state;
+        private final Frame frame;
+        private final int depth;
+        private final int start;
+        private final int end;
+        private final AtomicBoolean aborted;
+        Session session;
+        ByteList output;
+
+        ElementRange(Session parent, Frame frame, int start, int end,
+                     AtomicBoolean aborted) {
+            this.runtime = parent.getRuntime();
+            this.state = parent.getState();
+            this.frame = frame;
+            this.depth = parent.getDepth();
+            this.start = start;
+            this.end = end;
+            this.aborted = aborted;
+        }
+
+        public ElementRange call() {
+            session = new Session(runtime.getCurrentContext(), state);
+            session.depth = depth;
+            session.worker = true;
+            session.aborted = aborted;
+            Frame range = new Frame(frame.handler, frame.object, end,
+                                    frame.layout, depth);
+            range.index = start;
+            range.pairs = frame.pairs;
+            output = new ByteList(frame.handler.guessSize(session, frame.object)
+                                  / frame.size * (end - start));
+            try {
+                generateElements(session, range, end, output);
+            } catch (RuntimeException e) {
+                aborted.set(true);
+                throw e;
+            } catch (Error e) {
+                aborted.set(true);
+                throw e;
+            }
+            return this;
+        }
+    }
+
+    /**
+     * Generates all the elements of a frame on several threads at once, if
+     * it is the top-level container of a session whose state's
+     * <code>parallel_threshold</code> it reaches. The elements are split
+     * into ranges, each generated by a session of its own (one of them on
+     * the calling thread) and then appended in order.
+     *
+     * <p>Worker sessions never call Ruby code: if an element has its own
+     * <code>to_json</code>, everything they did is dropped, and the
+     * elements are left for the calling thread to generate. Once any range
+     * fails, the others stop at their next element.
+     *
+     * @return <code>false</code> if nothing was written, and the elements
+     *         are to be generated sequentially
+     */
+    private static boolean generateInParallel(Session session, Frame frame,
+                                              ByteList buffer) {
+        int count = parallelRangeCount(session, frame.size);
+        if (count < 2) return false;
+
+        AtomicBoolean aborted = new AtomicBoolean();
+        ElementRange[] ranges = new ElementRange[count];
+        for (int i = 0; i < count; i++) {
+            ranges[i] = new ElementRange(session, frame,
+                    (int)((long)frame.size * i / count),
+                    (int)((long)frame.size * (i + 1) / count), aborted);
+        }
+        ExecutorService pool =
+            session.getInfo().getGeneratorPool(session.getRuntime());
+        List<Future<ElementRange>> futures =
+            new ArrayList<Future<ElementRange>>(count - 1);
+        boolean done = false;
+        try {
+            for (int i = 1; i < count; i++) {
+                futures.add(pool.submit(ranges[i]));
+            }
+            // a range that stopped because another one failed is skipped,
+            // and the failure rethrown when that one is awaited
+            try {
+                ranges[0].call();
+            } catch (RangeAbortedException e) {
+            }
+            for (Future<ElementRange> future : futures) {
+                try {
+                    awaitRange(future);
+                } catch (RangeAbortedException e) {
                 }
-                buffer.append(((RubyString)object.to_s()).getByteList());
             }
-        };
+            done = true;
+        } catch (NotPlainDataException e) {
+            return false;
+        } catch (RaiseException e) {
+            // keep the depth of a NestingError raised by any of the ranges
+            for (ElementRange range : ranges) {
+                Session rangeSession = range.session;
+                if (rangeSession != null
+                        && rangeSession.getNestingErrorDepth() >= 0) {
+                    session.nestingErrorDepth =
+                        rangeSession.getNestingErrorDepth();
+                }
+            }
+            throw e;
+        } finally {
+            if (!done) {
+                aborted.set(true);
+                for (Future<ElementRange> future : futures) {
+                    future.cancel(false);
+                }
+            }
+        }
+        for (ElementRange range : ranges) {
+            buffer.append(range.output);
+            session.infectBy(range.session);
+            session.flushIfFull(buffer);
+        }
+        frame.index = frame.size;
+        return true;
+    }
+
+    /**
+     * Returns how many ranges {@link #generateInParallel} would split the
+     * given number of elements of the session's current container into,
+     * or a number below 2 if they are to be generated sequentially.
+     */
+    private static int parallelRangeCount(Session session, int size) {
+        GeneratorState state = session.getState();
+        int threshold = state.getParallelThreshold();
+        if (threshold == 0 || size < threshold || session.worker
+                || session.sink != null && !session.sink.keepsOutput()
+                || session.getDepth() != state.getDepth() + 1) {
+            return 0;
+        }
+        return Math.min(PARALLELISM, size / MIN_PARALLEL_RANGE);
+    }
+
+    /**
+     * Waits for a range to be generated, rethrowing anything it failed
+     * with. If the wait is interrupted, the range is given up, as if its
+     * elements were not plain data.
+     */
+    private static void awaitRange(Future<ElementRange> future) {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw NOT_PLAIN_DATA;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+            if (cause instanceof Error) throw (Error)cause;
+            throw new RuntimeException(cause);
+        }
+    }
+
+    /**
+     * A handler for Array-like objects, generated as JSON arrays.
+     */
+    private static abstract class ArrayHandler<T extends IRubyObject>
+            extends ContainerHandler<T> {
+        /**
+         * Returns the element at the given position, or writes it and returns
+         * <code>null</code>.
+         */
+        abstract IRubyObject element(Session session, T object, int i,
+                                     ByteList buffer);
+
+        @Override
+        int guessSize(Session session, T object) {
+            GeneratorState state = session.getState();
+            int depth = session.getDepth();
+            int perItem =
+                4                                           // prealloc
+                + (depth + 1) * state.getIndent().length()  // indent
+                + 1 + state.getArrayNl().length();          // ',' arrayNl
+            return 2 + size(object) * perItem;
+        }
+
+        @Override
+        Frame begin(Session session, T object, ByteList buffer) {
+            int depth = session.increaseDepth();
+            GeneratorState.Layout layout = session.getLayout();
+            Frame frame = new Frame(this, object, size(object), layout, depth);
+
+            session.infectBy(object);
+
+            buffer.append((byte)'[');
+            if (!layout.compact) buffer.append(layout.arrayNl);
+            return frame;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        IRubyObject beginElement(Session session, Frame frame,
+                                 ByteList buffer) {
+            int i = frame.index++;
+            GeneratorState.Layout layout = frame.layout;
+            if (layout.compact) {
+                if (i != 0) buffer.append((byte)',');
+            } else {
+                if (i != 0) buffer.append(layout.arrayDelim);
+                buffer.append(frame.indent);
+            }
+            return element(session, (T)frame.object, i, buffer);
+        }
+
+        @Override
+        void end(Session session, Frame frame, ByteList buffer) {
+            session.decreaseDepth();
+            GeneratorState.Layout layout = frame.layout;
+            if (layout.arrayNl.length != 0) {
+                buffer.append(layout.arrayNl);
+                buffer.append(frame.closingIndent);
+            }
+            buffer.append((byte)']');
+        }
+    }
 
     static final Handler<RubyArray> ARRAY_HANDLER =
-        new Handler<RubyArray>() {
+        new ArrayHandler<RubyArray>() {
             @Override
-            int guessSize(Session session, RubyArray object) {
-                GeneratorState state = session.getState();
-                int depth = state.getDepth();
-                int perItem =
-                    4                                           // prealloc
-                    + (depth + 1) * state.getIndent().length()  // indent
-                    + 1 + state.getArrayNl().length();          // ',' arrayNl
-                return 2 + object.size() * perItem;
+            int size(RubyArray object) {
+                return object.getLength();
             }
 
             @Override
-            void generate(Session session, RubyArray object, ByteList buffer) {
-                ThreadContext context = session.getContext();
-                Ruby runtime = context.getRuntime();
-                GeneratorState state = session.getState();
-                int depth = state.increaseDepth();
+            IRubyObject element(Session session, RubyArray object, int i,
+                                ByteList buffer) {
+                return object.eltInternal(i);
+            }
+        };
+
+    static final Handler<NumericArray> NUMERIC_ARRAY_HANDLER =
+        new ArrayHandler<NumericArray>() {
+            @Override
+            int size(NumericArray object) {
+                return object.size();
+            }
 
-                ByteList indentUnit = state.getIndent();
-                byte[] shift = Utils.repeat(indentUnit, depth);
+            @Override
+            IRubyObject element(Session session, NumericArray object, int i,
+                                ByteList buffer) {
+                if (!object.isFloat()) {
+                    appendLong(session, buffer, object.getLong(i));
+                } else {
+                    appendDouble(session, buffer, object.getDouble(i), null);
+                }
+                return null;
+            }
+        };
 
-                ByteList arrayNl = state.getArrayNl();
-                byte[] delim = new byte[1 + arrayNl.length()];
-                delim[0] = ',';
-                System.arraycopy(arrayNl.unsafeBytes(), arrayNl.begin(), delim, 1,
-                        arrayNl.length());
+    /**
+     * Appends the decimal digits of the given value to the buffer, as
+     * <code>Integer#to_s</code> would.
+     */
+    private static void appendLong(Session session, ByteList buffer,
+                                   long value) {
+        if (value == Long.MIN_VALUE) {
+            buffer.append(ByteList.plain(Long.toString(value)));
+            return;
+        }
+        byte[] digits = session.getNumberScratch();
+        int pos = digits.length;
+        boolean negative = value < 0;
+        if (negative) value = -value;
+        do {
+            digits[--pos] = (byte)('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        if (negative) digits[--pos] = '-';
+        buffer.append(digits, pos, digits.length - pos);
+    }
 
-                session.infectBy(object);
+    /**
+     * A handler for Hash-like objects, generated as JSON objects.
+     */
+    private static abstract class ObjectHandler<T extends IRubyObject>
+            extends ContainerHandler<T> {
+        abstract void visitAll(T object, RubyHash.Visitor visitor);
 
-                buffer.append((byte)'[');
-                buffer.append(arrayNl);
-                boolean firstItem = true;
-                for (int i = 0, t = object.getLength(); i < t; i++) {
-                    IRubyObject element = object.eltInternal(i);
-                    session.infectBy(element);
-                    if (firstItem) {
-                        firstItem = false;
-                    } else {
-                        buffer.append(delim);
-                    }
-                    buffer.append(shift);
-                    Handler<IRubyObject> handler = getHandlerFor(runtime, element);
-                    handler.generate(session, element, buffer);
+        @Override
+        int guessSize(Session session, T object) {
+            GeneratorState state = session.getState();
+            int perItem =
+                12    // key, colon, comma
+                + (session.getDepth() + 1) * state.getIndent().length()
+                + state.getSpaceBefore().length()
+                + state.getSpace().length();
+            return 2 + size(object) * perItem;
+        }
+
+        /**
+         * Generates the object in one go, visiting its pairs in place. Only
+         * parallel generation, which hands out ranges of pairs by position,
+         * goes through the snapshot taken by {@link #begin}.
+         */
+        @Override
+        void generate(final Session session, T object, final ByteList buffer) {
+            if (parallelRangeCount(session, size(object)) >= 2) {
+                super.generate(session, object, buffer);
+                return;
+            }
+            final Frame frame = open(session, object, buffer);
+            visitAll(object, new RubyHash.Visitor() {
+                @Override
+                public void visit(IRubyObject key, IRubyObject value) {
+                    writeKey(session, frame, frame.index++, key, buffer);
+                    Handler<IRubyObject> handler = getHandlerFor(session, value);
+                    handler.generate(session, value, buffer);
+                    session.infectBy(value);
+                    session.flushIfFull(buffer);
                 }
+            });
+            end(session, frame, buffer);
+        }
 
-                state.decreaseDepth();
-                if (arrayNl.length() != 0) {
-                    buffer.append(arrayNl);
-                    buffer.append(shift, 0, state.getDepth() * indentUnit.length());
+        /**
+         * Opens the object, taking a snapshot of its pairs so that they can
+         * be generated one at a time, in separate calls.
+         */
+        @Override
+        Frame begin(Session session, T object, ByteList buffer) {
+            final Frame frame = open(session, object, buffer);
+            frame.pairs = new IRubyObject[frame.size * 2];
+            visitAll(object, new RubyHash.Visitor() {
+                private int pos = 0;
+
+                @Override
+                public void visit(IRubyObject key, IRubyObject value) {
+                    frame.pairs[pos++] = key;
+                    frame.pairs[pos++] = value;
                 }
+            });
+            return frame;
+        }
 
-                buffer.append((byte)']');
+        private Frame open(Session session, T object, ByteList buffer) {
+            int depth = session.increaseDepth();
+            GeneratorState.Layout layout = session.getLayout();
+            Frame frame = new Frame(this, object, size(object), layout, depth);
+            buffer.append((byte)'{');
+            if (!layout.compact) buffer.append(layout.objectNl);
+            return frame;
+        }
+
+        @Override
+        IRubyObject beginElement(Session session, Frame frame,
+                                 ByteList buffer) {
+            int i = frame.index++;
+            writeKey(session, frame, i, frame.pairs[2 * i], buffer);
+            return frame.pairs[2 * i + 1];
+        }
+
+        /**
+         * Writes what comes before the value of the pair at the given
+         * position: the delimiter, indentation, key and colon.
+         */
+        private void writeKey(Session session, Frame frame, int i,
+                              IRubyObject key, ByteList buffer) {
+            GeneratorState.Layout layout = frame.layout;
+            if (layout.compact) {
+                if (i != 0) buffer.append((byte)',');
+                appendKey(session, key, buffer);
+                buffer.append((byte)':');
+            } else {
+                if (i != 0) buffer.append(layout.objectDelim);
+                if (layout.objectNl.length != 0) buffer.append(frame.indent);
+                appendKey(session, key, buffer);
+                buffer.append(layout.colon);
             }
-        };
+            session.infectBy(key);
+        }
+
+        @Override
+        void end(Session session, Frame frame, ByteList buffer) {
+            session.decreaseDepth();
+            GeneratorState.Layout layout = frame.layout;
+            if (layout.objectNl.length != 0) {
+                buffer.append(layout.objectNl);
+                buffer.append(frame.closingIndent);
+            }
+            buffer.append((byte)'}');
+        }
+    }
+
+    /**
+     * Writes an object key. The escaped forms of Symbols and frozen Strings
+     * are looked up in (or added to) the runtime's key cache, since the
+     * same few keys tend to repeat in every object.
+     */
+    static void appendKey(Session session, IRubyObject key,
+                          ByteList buffer) {
+        Object cacheKey = getKeyCacheKey(session, key);
+        if (cacheKey == null) {
+            // other keys are converted with #to_s, which workers may not call
+            if (session.worker && !(key instanceof RubyString)) {
+                throw NOT_PLAIN_DATA;
+            }
+            STRING_HANDLER.generate(session, key.asString(), buffer);
+            return;
+        }
+        Map<Object, byte[]> cache = session.getKeyCache();
+        byte[] escaped = cache.get(cacheKey);
+        if (escaped != null) {
+            buffer.append(escaped);
+            return;
+        }
+        int start = buffer.length();
+        STRING_HANDLER.generate(session, key.asString(), buffer);
+        escaped = new byte[buffer.length() - start];
+        System.arraycopy(buffer.unsafeBytes(), buffer.begin() + start,
+                         escaped, 0, escaped.length);
+        if (cache.size() >= MAX_CACHED_KEYS) cache.clear();
+        if (cacheKey instanceof ByteList) {
+            cacheKey = ((ByteList)cacheKey).dup();
+        }
+        cache.put(cacheKey, escaped);
+    }
+
+    /**
+     * The maximum number of keys kept by each key cache. A full cache is
+     * emptied, so it refills with the keys currently in use.
+     */
+    static final int MAX_CACHED_KEYS = 1024;
+
+    /**
+     * Returns what to look the given key up by in the key cache:
+     * Symbols are looked up by identity, and Strings by contents. Returns
+     * <code>null</code> if the key is not to be cached: unfrozen Strings,
+     * whose contents may change, and Strings whose escaped form depends on
+     * their encoding, rather than just on their bytes.
+     */
+    private static Object getKeyCacheKey(Session session, IRubyObject key) {
+        if (key instanceof RubySymbol) return key;
+        if (!(key instanceof RubyString) || !key.isFrozen()) return null;
+        RubyString str = (RubyString)key;
+        ByteList bytes = str.getByteList();
+        if (session.getInfo().encodingsSupported()) {
+            Encoding encoding = bytes.getEncoding();
+            boolean sevenBit = str.getCodeRange() == StringSupport.CR_7BIT
+                               && encoding.isAsciiCompatible();
+            if (!sevenBit && encoding != UTF8Encoding.INSTANCE) return null;
+        }
+        return bytes;
+    }
 
     static final Handler<RubyHash> HASH_HANDLER =
-        new Handler<RubyHash>() {
+        new ObjectHandler<RubyHash>() {
             @Override
-            int guessSize(Session session, RubyHash object) {
-                GeneratorState state = session.getState();
-                int perItem =
-                    12    // key, colon, comma
-                    + (state.getDepth() + 1) * state.getIndent().length()
-                    + state.getSpaceBefore().length()
-                    + state.getSpace().length();
-                return 2 + object.size() * perItem;
+            int size(RubyHash object) {
+                return object.size();
             }
 
             @Override
-            void generate(final Session session, RubyHash object,
-                          final ByteList buffer) {
-                ThreadContext context = session.getContext();
-                final Ruby runtime = context.getRuntime();
-                final GeneratorState state = session.getState();
-                final int depth = state.increaseDepth();
-
-                final ByteList objectNl = state.getObjectNl();
-                final byte[] indent = Utils.repeat(state.getIndent(), depth);
-                final ByteList spaceBefore = state.getSpaceBefore();
-                final ByteList space = state.getSpace();
-
-                buffer.append((byte)'{');
-                buffer.append(objectNl);
-                object.visitAll(new RubyHash.Visitor() {
-                    private boolean firstPair = true;
-
-                    @Override
-                    public void visit(IRubyObject key, IRubyObject value) {
-                        if (firstPair) {
-                            firstPair = false;
-                        } else {
-                            buffer.append((byte)',');
-                            buffer.append(objectNl);
-                        }
-                        if (objectNl.length() != 0) buffer.append(indent);
-
-                        STRING_HANDLER.generate(session, key.asString(), buffer);
-                        session.infectBy(key);
+            void visitAll(RubyHash object, RubyHash.Visitor visitor) {
+                object.visitAll(visitor);
+            }
+        };
 
-                        buffer.append(spaceBefore);
-                        buffer.append((byte)':');
-                        buffer.append(space);
+    static final Handler<CompactHash> COMPACT_HASH_HANDLER =
+        new ObjectHandler<CompactHash>() {
+            @Override
+            int size(CompactHash object) {
+                return object.size();
+            }
 
-                        Handler<IRubyObject> valueHandler = getHandlerFor(runtime, value);
-                        valueHandler.generate(session, value, buffer);
-                        session.infectBy(value);
-                    }
-                });
-                state.decreaseDepth();
-                if (objectNl.length() != 0) {
-                    buffer.append(objectNl);
-                    if (indent.length != 0) {
-                        for (int i = 0; i < state.getDepth(); i++) {
-                            buffer.append(indent);
-                        }
-                    }
-                }
-                buffer.append((byte)'}');
+            @Override
+            void visitAll(CompactHash object, RubyHash.Visitor visitor) {
+                object.visitAll(visitor);
             }
         };
 
@@ -377,20 +1436,512 @@ int guessSize(Session session, RubyString object) {
             @Override
             void generate(Session session, RubyString object, ByteList buffer) {
                 RuntimeInfo info = session.getInfo();
-                RubyString src;
+                StringEncoder encoder = session.getStringEncoder();
+                ByteList bytes = object.getByteList();
 
-                if (info.encodingsSupported() &&
-                        object.encoding(session.getContext()) != info.utf8) {
-                    src = (RubyString)object.encode(session.getContext(),
-                                                    info.utf8);
-                } else {
-                    src = object;
+                if (!info.encodingsSupported()) {
+                    encoder.encode(bytes, buffer);
+                    return;
+                }
+
+                // use what is already known of the string to avoid checking
+                // its contents or transcoding it to a temporary copy
+                Encoding encoding = bytes.getEncoding();
+                int codeRange = object.getCodeRange();
+                if (codeRange == StringSupport.CR_7BIT
+                        && encoding.isAsciiCompatible()) {
+                    encoder.encodeValid(bytes, buffer);
+                } else if (encoding == UTF8Encoding.INSTANCE) {
+                    if (codeRange == StringSupport.CR_VALID) {
+                        encoder.encodeValid(bytes, buffer);
+                    } else {
+                        boolean ascii = encoder.encode(bytes, buffer);
+                        // the string was valid, or an error would have
+                        // been raised; remember it for the next time
+                        // (unless on a worker thread, which must leave
+                        // the string as it is)
+                        if (codeRange == StringSupport.CR_UNKNOWN
+                                && !session.worker) {
+                            object.setCodeRange(ascii ? StringSupport.CR_7BIT
+                                                      : StringSupport.CR_VALID);
+                        }
+                    }
+                } else if (encoding == ISO8859_1Encoding.INSTANCE) {
+                    encoder.encodeLatin1(bytes, buffer);
+                } else if (!(encoding == UTF16BEEncoding.INSTANCE
+                             && encoder.encodeUtf16(bytes, true, buffer))
+                        && !(encoding == UTF16LEEncoding.INSTANCE
+                             && encoder.encodeUtf16(bytes, false, buffer))) {
+                    RubyString src = (RubyString)object.encode(
+                            session.getContext(), info.utf8);
+                    encoder.encode(src.getByteList(), buffer);
+                }
+            }
+        };
+
+    /**
+     * A handler for pre-generated JSON, which is copied as is.
+     */
+    static final Handler<Fragment> FRAGMENT_HANDLER =
+        new Handler<Fragment>() {
+            @Override
+            int guessSize(Session session, Fragment object) {
+                return object.getJson().length();
+            }
+
+            @Override
+            void generate(Session session, Fragment object, ByteList buffer) {
+                buffer.append(object.getJson());
+            }
+        };
+
+    /**
+     * A handler for Enumerators, with the <code>:enumerables</code>
+     * option: generates an array of the elements <code>each</code> yields,
+     * writing each one as it comes. The elements are never collected, and
+     * with a sink, neither is the output, so a lazy source of any size is
+     * generated in constant memory.
+     */
+    static final Handler<IRubyObject> ENUMERABLE_HANDLER =
+        new Handler<IRubyObject>() {
+            @Override
+            void generate(final Session session, IRubyObject object,
+                          final ByteList buffer) {
+                // each runs Ruby code, which only the calling thread may do
+                if (session.worker) throw NOT_PLAIN_DATA;
+                int depth = session.increaseDepth();
+                final GeneratorState.Layout layout = session.getLayout();
+                final byte[] indent = layout.indent(depth);
+                final int[] count = {0};
+
+                session.infectBy(object);
+
+                buffer.append((byte)'[');
+                if (!layout.compact) buffer.append(layout.arrayNl);
+                RubyEnumerable.callEach(session.getRuntime(),
+                        session.getContext(), object, new BlockCallback() {
+                    public IRubyObject call(ThreadContext context,
+                                            IRubyObject[] args, Block block) {
+                        IRubyObject element = yieldedValue(context, args);
+                        if (layout.compact) {
+                            if (count[0] != 0) buffer.append((byte)',');
+                        } else {
+                            if (count[0] != 0) buffer.append(layout.arrayDelim);
+                            buffer.append(indent);
+                        }
+                        count[0]++;
+                        generateValue(session, element, buffer);
+                        session.flushIfFull(buffer);
+                        return context.getRuntime().getNil();
+                    }
+                });
+                session.decreaseDepth();
+                if (layout.arrayNl.length != 0) {
+                    buffer.append(layout.arrayNl);
+                    buffer.append(layout.indent(depth - 1));
+                }
+                buffer.append((byte)']');
+            }
+        };
+
+    /**
+     * An attribute of the objects of a class with a registered serializer.
+     */
+    static final class SerializedAttribute {
+        /** How the attribute is read */
+        static final int IVAR = 0, MEMBER = 1, METHOD = 2;
+
+        final int kind;
+        /** The instance variable (with its <code>@</code>) or method name */
+        final String name;
+        /** The index of the Struct member */
+        final int index;
+        /** The escaped key, as generated without and with ascii_only */
+        final byte[] key;
+        final byte[] asciiOnlyKey;
+
+        SerializedAttribute(int kind, String name, int index, byte[] key,
+                            byte[] asciiOnlyKey) {
+            this.kind = kind;
+            this.name = name;
+            this.index = index;
+            this.key = key;
+            this.asciiOnlyKey = asciiOnlyKey;
+        }
+
+        IRubyObject read(ThreadContext context, IRubyObject object) {
+            switch (kind) {
+            case IVAR:
+                IRubyObject value =
+                    object.getInstanceVariables().getInstanceVariable(name);
+                return value == null ? context.getRuntime().getNil() : value;
+            case MEMBER:
+                if (object instanceof RubyStruct) {
+                    return ((RubyStruct)object).get(index);
+                }
+                // a Struct class can only have Struct instances, but be safe
+                return object.callMethod(context, name);
+            default:
+                return object.callMethod(context, name);
+            }
+        }
+    }
+
+    /**
+     * The handler for instances of a class registered with
+     * <code>JSON::Ext::Generator.register_serializer</code>: generates a
+     * JSON object of the registered attributes, read straight from the
+     * object, with keys escaped once and for all at registration.
+     */
+    static final class ObjectSerializer extends Handler<IRubyObject> {
+        private final SerializedAttribute[] attributes;
+        /** Whether reading the attributes calls methods (Ruby code) */
+        private final boolean callsMethods;
+
+        ObjectSerializer(SerializedAttribute[] attributes) {
+            this.attributes = attributes;
+            boolean calls = false;
+            for (SerializedAttribute attribute : attributes) {
+                if (attribute.kind != SerializedAttribute.IVAR) calls = true;
+            }
+            this.callsMethods = calls;
+        }
+
+        @Override
+        int guessSize(Session session, IRubyObject object) {
+            return 2 + attributes.length * 16;
+        }
+
+        @Override
+        void generate(Session session, IRubyObject object, ByteList buffer) {
+            if (session.worker && callsMethods) throw NOT_PLAIN_DATA;
+            int depth = session.increaseDepth();
+            GeneratorState.Layout layout = session.getLayout();
+            byte[] indent = layout.indent(depth);
+            boolean asciiOnly = session.getState().asciiOnly();
+            ThreadContext context = session.getContext();
+
+            session.infectBy(object);
+
+            buffer.append((byte)'{');
+            if (!layout.compact) buffer.append(layout.objectNl);
+            for (int i = 0; i < attributes.length; i++) {
+                SerializedAttribute attribute = attributes[i];
+                if (i != 0) {
+                    if (layout.compact) {
+                        buffer.append((byte)',');
+                    } else {
+                        buffer.append(layout.objectDelim);
+                    }
+                }
+                if (layout.objectNl.length != 0) buffer.append(indent);
+                buffer.append(asciiOnly ? attribute.asciiOnlyKey
+                                        : attribute.key);
+                buffer.append(layout.colon);
+                generateValue(session, attribute.read(context, object),
+                              buffer);
+            }
+            session.decreaseDepth();
+            if (layout.objectNl.length != 0) {
+                buffer.append(layout.objectNl);
+                buffer.append(layout.indent(depth - 1));
+            }
+            buffer.append((byte)'}');
+        }
+    }
+
+    /**
+     * Returns the value yielded to a block with the given arguments, as
+     * <code>each</code> passes it on: several values are packed into an
+     * Array.
+     */
+    private static IRubyObject yieldedValue(ThreadContext context,
+                                            IRubyObject[] args) {
+        if (args.length == 0) return context.getRuntime().getNil();
+        if (args.length == 1) return args[0];
+        return context.getRuntime().newArrayNoCopy(args);
+    }
+
+    /**
+     * A handler for frozen Strings, Hashes and Arrays, when the state caches
+     * their JSON (see {@link FrozenCache}). Objects found to be cacheable
+     * are generated by their usual handler the first time, and copied from
+     * the cache afterwards.
+     */
+    static final Handler<IRubyObject> FROZEN_HANDLER =
+        new Handler<IRubyObject>() {
+            @Override
+            void generate(Session session, IRubyObject object, ByteList buffer) {
+                Ruby runtime = session.getRuntime();
+                RubyClass metaClass = object.getMetaClass();
+                @SuppressWarnings("unchecked")
+                Handler<IRubyObject> handler = (Handler)(
+                    metaClass == runtime.getString() ? STRING_HANDLER
+                    : metaClass == runtime.getHash() ? HASH_HANDLER
+                    : ARRAY_HANDLER);
+
+                FrozenCache cache = session.getInfo().getFrozenCache();
+                FrozenCache.Entry entry = cache.get(object);
+                if (entry == null) {
+                    int height = FrozenCache.height(runtime, object);
+                    entry = height < 0 ? FrozenCache.Entry.NOT_CACHEABLE
+                                       : new FrozenCache.Entry(height, null, null);
+                    cache.put(object, entry);
+                }
+                GeneratorState state = session.getState();
+                int maxNesting = state.getMaxNesting();
+                if (!entry.isCacheable() || maxNesting != 0
+                        && session.getDepth() + entry.height > maxNesting) {
+                    // let the usual handler raise the NestingError
+                    handler.generate(session, object, buffer);
+                    return;
                 }
 
-                session.getStringEncoder().encode(src.getByteList(), buffer);
+                boolean asciiOnly = state.asciiOnly();
+                byte[] json = entry.getJson(asciiOnly);
+                if (json != null) {
+                    cache.countHit();
+                    buffer.append(json);
+                    return;
+                }
+                cache.countMiss();
+                int start = buffer.length();
+                int flushes = session.flushes;
+                session.fillingFrozenCache = true;
+                try {
+                    handler.generate(session, object, buffer);
+                } finally {
+                    session.fillingFrozenCache = false;
+                }
+                // if part of the output was handed over to the sink, the
+                // buffer no longer holds all of it, and it isn't kept
+                int length = buffer.length() - start;
+                if (session.flushes == flushes
+                        && length <= FrozenCache.MAX_ENTRY_SIZE) {
+                    json = new byte[length];
+                    System.arraycopy(buffer.unsafeBytes(),
+                            buffer.begin() + start, json, 0, length);
+                    cache.put(object, entry.withJson(asciiOnly, json));
+                }
             }
         };
 
+    /**
+     * <code>JSON::Ext::Generator.frozen_cache_stats</code>
+     *
+     * <p>Returns a Hash with the number of <code>:hits</code> and
+     * <code>:misses</code> of the runtime's cache of frozen objects (see the
+     * <code>:frozen_cache</code> option of <code>State</code>), and its
+     * current <code>:size</code>.
+     */
+    @JRubyMethod(meta = true)
+    public static IRubyObject frozen_cache_stats(ThreadContext context,
+                                                 IRubyObject self) {
+        Ruby runtime = context.getRuntime();
+        FrozenCache cache = RuntimeInfo.forRuntime(runtime).getFrozenCache();
+        RubyHash result = RubyHash.newHash(runtime);
+        result.op_aset(context, runtime.newSymbol("hits"),
+                       runtime.newFixnum(cache.getHits()));
+        result.op_aset(context, runtime.newSymbol("misses"),
+                       runtime.newFixnum(cache.getMisses()));
+        result.op_aset(context, runtime.newSymbol("size"),
+                       runtime.newFixnum(cache.size()));
+        return result;
+    }
+
+    /**
+     * <code>JSON::Ext::Generator.clear_frozen_cache</code>
+     *
+     * <p>Empties the runtime's cache of frozen objects and resets its
+     * counters.
+     */
+    @JRubyMethod(meta = true)
+    public static IRubyObject clear_frozen_cache(ThreadContext context,
+                                                 IRubyObject self) {
+        RuntimeInfo.forRuntime(context.getRuntime()).getFrozenCache().clear();
+        return context.getRuntime().getNil();
+    }
+
+    /**
+     * <code>JSON::Ext::Generator.generate_lines(records, target, state = nil)</code>
+     *
+     * <p>Writes each element of <code>records</code> (an Array, or any
+     * object responding to <code>each</code>) as a line of JSON (the JSON
+     * Lines or NDJSON format), ending with <code>"\n"</code>.
+     * <code>target</code> is a String to append to, or anything accepted
+     * by <code>State#generate_to</code>. <code>state</code> is a
+     * <code>State</code> or a Hash of options, as for
+     * <code>JSON.generate</code>; its layout strings are ignored, as each
+     * record must fit on one line.
+     *
+     * <p>All the records are generated in one session, into one buffer,
+     * which is written to an IO in large chunks, always made of whole
+     * lines. If a record fails to generate, the lines before it are still
+     * written. Returns <code>target</code>.
+     */
+    @JRubyMethod(meta = true, required = 2, optional = 1)
+    public static IRubyObject generate_lines(ThreadContext context,
+            IRubyObject self, IRubyObject[] args) {
+        GeneratorState state = GeneratorState.fromState(context,
+                args.length > 2 ? args[2] : null);
+        if (!state.getLayout().compact) state = state.compactCopy(context);
+        final Session session = new Session(context, state);
+        IRubyObject target = args[1];
+
+        if (target instanceof RubyString) {
+            RubyString string = (RubyString)target;
+            string.modify();
+            try {
+                generateLines(session, args[0], string.getByteList(), null);
+            } finally {
+                string.clearCodeRange();
+                session.infect(string);
+            }
+        } else {
+            GeneratorSink sink = GeneratorSink.forTarget(context, target);
+            ByteList buffer = new ByteList(sink.getChunkSize() * 2);
+            try {
+                generateLines(session, args[0], buffer, sink);
+            } finally {
+                if (buffer.length() != 0) sink.write(context, buffer);
+            }
+        }
+        return target;
+    }
+
+    /**
+     * Appends a line of JSON for each record to the buffer, handing whole
+     * lines over to the sink, if any, whenever they reach its chunk size.
+     * A line that fails to generate is removed from the buffer.
+     */
+    private static void generateLines(final Session session,
+            IRubyObject records, final ByteList buffer,
+            final GeneratorSink sink) {
+        if (records instanceof RubyArray) {
+            RubyArray array = (RubyArray)records;
+            for (int i = 0; i < array.getLength(); i++) {
+                generateLine(session, array.eltInternal(i), buffer, sink);
+            }
+            return;
+        }
+        RubyEnumerable.callEach(session.getRuntime(), session.getContext(),
+                records, new BlockCallback() {
+            public IRubyObject call(ThreadContext context,
+                                    IRubyObject[] args, Block block) {
+                generateLine(session, yieldedValue(context, args), buffer,
+                             sink);
+                return context.getRuntime().getNil();
+            }
+        });
+    }
+
+    private static void generateLine(Session session, IRubyObject record,
+                                     ByteList buffer, GeneratorSink sink) {
+        int start = buffer.length();
+        boolean done = false;
+        try {
+            generateValue(session, record, buffer);
+            buffer.append((byte)'\n');
+            done = true;
+        } finally {
+            if (!done) buffer.setRealSize(start);
+        }
+        if (sink != null && buffer.length() >= sink.getChunkSize()) {
+            sink.write(session.getContext(), buffer);
+            buffer.setRealSize(0);
+        }
+    }
+
+    /**
+     * <code>JSON::Ext::Generator.register_serializer(klass, *attributes)</code>
+     *
+     * <p>Makes the generator write the instances of <code>klass</code> as
+     * JSON objects of the given attributes, in order, instead of calling
+     * their <code>to_json</code>. Each attribute is a Symbol or String:
+     * names starting with <code>@</code> are instance variables (written
+     * without the <code>@</code>), names of the members of a Struct class
+     * are read as those members, and any other name is a method, called
+     * without arguments. Only instances of <code>klass</code> itself are
+     * affected, not those of its subclasses. Registering a class again
+     * replaces its attributes.
+     */
+    @JRubyMethod(meta = true, required = 1, rest = true)
+    public static IRubyObject register_serializer(ThreadContext context,
+            IRubyObject self, IRubyObject[] args) {
+        Ruby runtime = context.getRuntime();
+        if (!(args[0] instanceof RubyClass)) {
+            throw runtime.newTypeError(args[0], runtime.getClassClass());
+        }
+        RubyClass klass = (RubyClass)args[0];
+        RubyArray members = null;
+        if (klass.hasModuleInHierarchy(runtime.getStructClass())) {
+            members = RubyStruct.members(klass, Block.NULL_BLOCK);
+        }
+
+        // the keys are escaped by the generator itself, once per setting
+        Session session = new Session(context,
+                GeneratorState.fromState(context, null));
+        RubyHash asciiOnlyOpts = RubyHash.newHash(runtime);
+        asciiOnlyOpts.op_aset(context, runtime.newSymbol("ascii_only"),
+                              runtime.getTrue());
+        Session asciiOnlySession = new Session(context,
+                GeneratorState.fromState(context, asciiOnlyOpts));
+
+        SerializedAttribute[] attributes =
+            new SerializedAttribute[args.length - 1];
+        for (int i = 1; i < args.length; i++) {
+            if (!(args[i] instanceof RubySymbol)
+                    && !(args[i] instanceof RubyString)) {
+                throw runtime.newTypeError(args[i], runtime.getSymbol());
+            }
+            String name = args[i].asJavaString();
+            int kind = SerializedAttribute.METHOD;
+            int index = -1;
+            String keyName = name;
+            if (name.startsWith("@")) {
+                kind = SerializedAttribute.IVAR;
+                keyName = name.substring(1);
+            } else if (members != null) {
+                for (int j = 0, t = members.getLength(); j < t; j++) {
+                    if (name.equals(members.eltInternal(j).asJavaString())) {
+                        kind = SerializedAttribute.MEMBER;
+                        index = j;
+                        break;
+                    }
+                }
+            }
+            if (keyName.length() == 0) {
+                throw runtime.newArgumentError("invalid attribute name: " + name);
+            }
+            RubyString key = RubyString.newUnicodeString(runtime, keyName);
+            attributes[i - 1] = new SerializedAttribute(kind, name, index,
+                    escapeKey(session, key), escapeKey(asciiOnlySession, key));
+        }
+        RuntimeInfo.forRuntime(runtime).serializers.put(klass,
+                new ObjectSerializer(attributes));
+        return klass;
+    }
+
+    private static byte[] escapeKey(Session session, RubyString key) {
+        ByteList buffer = new ByteList(key.getByteList().length() + 2);
+        STRING_HANDLER.generate(session, key, buffer);
+        return buffer.bytes();
+    }
+
+    /**
+     * <code>JSON::Ext::Generator.unregister_serializer(klass)</code>
+     *
+     * <p>Makes the generator call <code>to_json</code> on the instances of
+     * <code>klass</code> again. Returns whether it had a serializer.
+     */
+    @JRubyMethod(meta = true)
+    public static IRubyObject unregister_serializer(ThreadContext context,
+            IRubyObject self, IRubyObject klass) {
+        Ruby runtime = context.getRuntime();
+        return runtime.newBoolean(RuntimeInfo.forRuntime(runtime)
+                .serializers.remove(klass) != null);
+    }
+
     static final Handler<RubyBoolean> TRUE_HANDLER =
         new KeywordHandler<RubyBoolean>("true");
     static final Handler<RubyBoolean> FALSE_HANDLER =
@@ -417,23 +1968,58 @@ void generate(Session session, IRubyObject object, ByteList buffer) {
             }
         };
 
+    /**
+     * Appends the JSON form of the given object to the given buffer, as
+     * part of the given session.
+     */
+    static void generateValue(Session session, IRubyObject object,
+                              ByteList buffer) {
+        getHandlerFor(session, object).generate(session, object, buffer);
+        session.infectBy(object);
+    }
+
+    /**
+     * Appends the JSON form of the given object to the given buffer, on
+     * behalf of <code>State#append</code>.
+     */
+    static void appendJson(ThreadContext context, IRubyObject object,
+                           GeneratorState state, ByteList buffer) {
+        Session session = new Session(context, state);
+        getHandlerFor(session, object).generate(session, object, buffer);
+    }
+
     /**
      * A handler that simply calls <code>#to_json(state)</code> on the
      * given object.
+     *
+     * <p>Objects responding to <code>append_json(state)</code> are given
+     * the chance to write into the output directly instead: that method is
+     * called with the state carrying the output buffer, which they can
+     * append to with <code>State#append</code>. This saves the
+     * intermediate String that <code>to_json</code> would return.
      */
     static final Handler<IRubyObject> GENERIC_HANDLER =
         new Handler<IRubyObject>() {
             @Override
             RubyString generateNew(Session session, IRubyObject object) {
+                // even respond_to? may be Ruby code
+                if (session.worker) throw NOT_PLAIN_DATA;
+                if (object.respondsTo("append_json")) {
+                    return super.generateNew(session, object);
+                }
                 IRubyObject result =
-                    object.callMethod(session.getContext(), "to_json",
-                          new IRubyObject[] {session.getState()});
+                    session.callWithState(object, "to_json", null);
                 if (result instanceof RubyString) return (RubyString)result;
                 throw session.getRuntime().newTypeError("to_json must return a String");
             }
 
             @Override
             void generate(Session session, IRubyObject object, ByteList buffer) {
+                if (session.worker) throw NOT_PLAIN_DATA;
+                if (object.respondsTo("append_json")) {
+                    session.callWithState(object, "append_json", buffer);
+                    return;
+                }
                 RubyString result = generateNew(session, object);
                 buffer.append(result.getByteList());
             }
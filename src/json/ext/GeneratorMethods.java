@@ -137,20 +137,60 @@ public static IRubyObject to_json_raw_object(ThreadContext context,
         private static RubyHash toJsonRawObject(ThreadContext context,
                                                 RubyString self) {
             Ruby runtime = context.getRuntime();
-            RubyHash result = RubyHash.newHash(runtime);
-
-            IRubyObject createId = RuntimeInfo.forRuntime(runtime)
-                    .jsonModule.callMethod(context, "create_id");
-            result.op_aset(context, createId, self.getMetaClass().to_s());
-
             ByteList bl = self.getByteList();
             byte[] uBytes = bl.unsafeBytes();
             RubyArray array = runtime.newArray(bl.length());
             for (int i = bl.begin(), t = bl.begin() + bl.length(); i < t; i++) {
                 array.store(i, runtime.newFixnum(uBytes[i] & 0xff));
             }
+            return newRawObject(context, self, "raw", array);
+        }
+
+        /**
+         * <code>{@link RubyString String}#to_json_raw64(*)</code>
+         *
+         * <p>This method creates a JSON text from the result of a call to
+         * {@link #to_json_raw64_object} of this String.
+         */
+        @JRubyMethod(rest=true)
+        public static IRubyObject to_json_raw64(ThreadContext context,
+                IRubyObject vSelf, IRubyObject[] args) {
+            RubyHash obj = toJsonRaw64Object(context, Utils.ensureString(vSelf));
+            return Generator.generateJson(context, obj,
+                    Generator.HASH_HANDLER, args);
+        }
 
-            result.op_aset(context, runtime.newString("raw"), array);
+        /**
+         * <code>{@link RubyString String}#to_json_raw64_object(*)</code>
+         *
+         * <p>Like {@link #to_json_raw_object}, but the bytes are stored
+         * Base64-encoded in a single String, for the key "raw64", rather
+         * than as an Array of Integers for the key "raw". The JSON is then
+         * a third larger than the bytes themselves, instead of about four
+         * times as large, and no object is created per byte.
+         */
+        @JRubyMethod(rest=true)
+        public static IRubyObject to_json_raw64_object(ThreadContext context,
+                IRubyObject vSelf, IRubyObject[] args) {
+            return toJsonRaw64Object(context, Utils.ensureString(vSelf));
+        }
+
+        private static RubyHash toJsonRaw64Object(ThreadContext context,
+                                                  RubyString self) {
+            RubyString encoded = context.getRuntime().newString(
+                    Utils.encodeBase64(self.getByteList()));
+            return newRawObject(context, self, "raw64", encoded);
+        }
+
+        private static RubyHash newRawObject(ThreadContext context,
+                RubyString self, String key, IRubyObject value) {
+            Ruby runtime = context.getRuntime();
+            RubyHash result = RubyHash.newHash(runtime);
+
+            IRubyObject createId = RuntimeInfo.forRuntime(runtime)
+                    .jsonModule.callMethod(context, "create_id");
+            result.op_aset(context, createId, self.getMetaClass().to_s());
+            result.op_aset(context, runtime.newString(key), value);
             return result;
         }
 
@@ -167,14 +207,24 @@ public static class StringExtend {
          * <code>{@link RubyString String}#json_create(o)</code>
          *
          * <p>Raw Strings are JSON Objects (the raw bytes are stored in an
-         * array for the key "raw"). The Ruby String can be created by this
-         * module method.
+         * array for the key "raw", or Base64-encoded for the key "raw64").
+         * The Ruby String can be created by this module method.
          */
         @JRubyMethod(required=1)
         public static IRubyObject json_create(ThreadContext context,
                 IRubyObject vSelf, IRubyObject vHash) {
             Ruby runtime = context.getRuntime();
             RubyHash o = vHash.convertToHash();
+            IRubyObject raw64 = o.fastARef(runtime.newString("raw64"));
+            if (raw64 != null) {
+                ByteList bytes =
+                    Utils.decodeBase64(Utils.ensureString(raw64).getByteList());
+                if (bytes == null) {
+                    throw runtime.newArgumentError("invalid Base64 in \"raw64\" "
+                                                   + "value for encoded String");
+                }
+                return runtime.newString(bytes);
+            }
             IRubyObject rawData = o.fastARef(runtime.newString("raw"));
             if (rawData == null) {
                 throw runtime.newArgumentError("\"raw\" value not defined "
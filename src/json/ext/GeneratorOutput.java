@@ -0,0 +1,155 @@
+/*
+ * This code is copyrighted work by Daniel Luz <dev at mernen dot com>.
+ *
+ * Distributed under the Ruby and GPLv2 licenses; see COPYING and GPL files
+ * for details.
+ */
+package json.ext;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jruby.RubyString;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+import org.jruby.util.ByteList;
+
+/**
+ * A JSON document being generated on demand, for Java code writing it to
+ * {@link ByteBuffer}s (heap or direct) or NIO channels.
+ *
+ * <p>Each call to {@link #writeTo(ByteBuffer)} or
+ * {@link #writeTo(WritableByteChannel)} generates just enough of the
+ * document to fill the target, then returns; the next call resumes where
+ * the previous one stopped. Arrays and objects are walked one element at a
+ * time on an explicit stack of {@link Generator.Frame}s, so the only
+ * memory held between calls is that stack and a chunk of pending output
+ * (about {@link GeneratorSink#DEFAULT_CHUNK_SIZE} bytes plus the largest
+ * single scalar value).
+ *
+ * <p>A typical non-blocking writer would do:
+ * <pre>
+ * GeneratorOutput output = new GeneratorOutput(context, object, state);
+ * // whenever the channel is writable:
+ * if (output.writeTo(channel)) { ... done ... }
+ * </pre>
+ *
+ * <p>Like the rest of the generator, instances must only be used from the
+ * thread owning the given context.
+ */
+public final class GeneratorOutput {
+    private final ThreadContext context;
+    private final IRubyObject object;
+    private final GeneratorState state;
+    private final Generator.Session session;
+    private final List<Generator.Frame> stack =
+        new ArrayList<Generator.Frame>();
+    private final int chunkSize;
+
+    /** Generated output not yet handed out, starting at {@link #pending} */
+    private final ByteList buffer;
+    private int pending = 0;
+    private boolean started = false;
+    private boolean finished = false;
+
+    public GeneratorOutput(ThreadContext context, IRubyObject object,
+                           GeneratorState state) {
+        this(context, object, state, GeneratorSink.DEFAULT_CHUNK_SIZE);
+    }
+
+    public GeneratorOutput(ThreadContext context, IRubyObject object,
+                           GeneratorState state, int chunkSize) {
+        this.context = context;
+        this.object = object;
+        this.state = state;
+        this.session = new Generator.Session(context, state);
+        this.chunkSize = chunkSize;
+        this.buffer = new ByteList(chunkSize * 2);
+    }
+
+    /**
+     * Returns whether the whole document has been written out.
+     */
+    public boolean isDone() {
+        return finished && pending == buffer.length();
+    }
+
+    /**
+     * Copies as much of the document as fits into the given buffer,
+     * generating more as needed.
+     * @return <code>true</code> if the whole document has been written
+     */
+    public boolean writeTo(ByteBuffer target) {
+        while (target.hasRemaining()) {
+            if (!fill()) return true;
+            int length = Math.min(target.remaining(),
+                                  buffer.length() - pending);
+            target.put(buffer.unsafeBytes(), buffer.begin() + pending, length);
+            pending += length;
+        }
+        return isDone();
+    }
+
+    /**
+     * Writes as much of the document as the channel accepts, generating
+     * more as needed. On a non-blocking channel, this returns as soon as
+     * the channel stops accepting bytes.
+     * @return <code>true</code> if the whole document has been written
+     */
+    public boolean writeTo(WritableByteChannel channel) throws IOException {
+        while (fill()) {
+            ByteBuffer chunk = ByteBuffer.wrap(buffer.unsafeBytes(),
+                    buffer.begin() + pending, buffer.length() - pending);
+            int written = channel.write(chunk);
+            pending += written;
+            if (chunk.hasRemaining()) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Makes sure there is pending output, generating the next chunk if
+     * needed.
+     * @return <code>false</code> if the document is complete and all of it
+     *         was handed out
+     */
+    private boolean fill() {
+        if (pending < buffer.length()) return true;
+        buffer.setRealSize(0);
+        pending = 0;
+        while (!finished && buffer.length() < chunkSize) step();
+        return buffer.length() != 0;
+    }
+
+    /**
+     * Generates the next piece of the document: the opening of a container,
+     * a scalar element, or the closing of a container.
+     */
+    private void step() {
+        if (!started) {
+            started = true;
+            if (!Generator.beginContainer(session, object, stack, buffer)) {
+                // not a container; generate it whole, with the usual checks
+                RubyString result =
+                    (RubyString)state.generate(context, object);
+                buffer.append(result.getByteList());
+                finished = true;
+            }
+            return;
+        }
+        Generator.Frame frame = stack.get(stack.size() - 1);
+        if (frame.index == frame.size) {
+            frame.end(session, buffer);
+            stack.remove(stack.size() - 1);
+            if (stack.isEmpty()) finished = true;
+            return;
+        }
+        IRubyObject element = frame.beginElement(session, buffer);
+        if (element != null) {
+            Generator.generateElement(session, element, stack, buffer);
+        }
+    }
+}
@@ -15,7 +15,9 @@
 
 /**
  * The service invoked by JRuby's {@link org.jruby.runtime.load.LoadService LoadService}.
- * Defines the <code>JSON::Ext::Generator</code> module.
+ * Defines the <code>JSON::Ext::Generator</code> module and the
+ * <code>JSON::Ext::Fragment</code> and <code>JSON::Ext::Writer</code>
+ * classes.
  * @author mernen
  */
 public class GeneratorService implements BasicLibraryService {
@@ -27,12 +29,24 @@ public boolean basicLoad(Ruby runtime) throws IOException {
         RubyModule jsonExtModule = info.jsonModule.defineModuleUnder("Ext");
         RubyModule generatorModule = jsonExtModule.defineModuleUnder("Generator");
 
+        generatorModule.defineAnnotatedMethods(Generator.class);
+
         RubyClass stateClass =
             generatorModule.defineClassUnder("State", runtime.getObject(),
                                              GeneratorState.ALLOCATOR);
         stateClass.defineAnnotatedMethods(GeneratorState.class);
         info.generatorStateClass = stateClass;
 
+        RubyClass fragmentClass =
+            jsonExtModule.defineClassUnder("Fragment", runtime.getObject(),
+                                           Fragment.ALLOCATOR);
+        fragmentClass.defineAnnotatedMethods(Fragment.class);
+
+        RubyClass writerClass =
+            jsonExtModule.defineClassUnder("Writer", runtime.getObject(),
+                                           Writer.ALLOCATOR);
+        writerClass.defineAnnotatedMethods(Writer.class);
+
         RubyModule generatorMethods =
             generatorModule.defineModuleUnder("GeneratorMethods");
         GeneratorMethods.populate(info, generatorMethods);
@@ -0,0 +1,207 @@
+/*
+ * This code is copyrighted work by Daniel Luz <dev at mernen dot com>.
+ *
+ * Distributed under the Ruby and GPLv2 licenses; see COPYING and GPL files
+ * for details.
+ */
+package json.ext;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jruby.Ruby;
+import org.jruby.RubyIO;
+import org.jruby.RubyString;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+import org.jruby.util.ByteList;
+
+/**
+ * A destination for JSON documents generated in chunks.
+ *
+ * <p>Handlers working on a session with a sink hand their buffer over to it
+ * whenever it grows past {@link #getChunkSize()} bytes (see
+ * {@link Generator.Session#flushIfFull}), so memory use stays bounded by
+ * the chunk size plus the largest single value, and output starts as soon as
+ * the first chunk is full.
+ */
+abstract class GeneratorSink {
+    static final int DEFAULT_CHUNK_SIZE = 16384;
+
+    private final int chunkSize;
+
+    GeneratorSink(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Writes out the contents of the given buffer. The buffer is emptied
+     * by the caller afterwards, so they must not be retained.
+     */
+    abstract void write(ThreadContext context, ByteList chunk);
+
+    /**
+     * Returns whether this sink keeps all the output in memory anyway, so
+     * that it needn't be generated in bounded chunks.
+     */
+    boolean keepsOutput() {
+        return false;
+    }
+
+    /**
+     * Returns a sink writing to the given object, which may be a
+     * Ruby <code>IO</code>, a <code>java.io.OutputStream</code>, a
+     * <code>java.nio.channels.WritableByteChannel</code> or any object
+     * responding to <code>write</code>.
+     * @throws RaiseException <code>TypeError</code> if the object is none of
+     *                        those
+     */
+    static GeneratorSink forTarget(ThreadContext context, IRubyObject target) {
+        if (!(target instanceof RubyIO)) {
+            Object javaTarget = target.toJava(Object.class);
+            if (javaTarget instanceof OutputStream) {
+                return new StreamSink((OutputStream)javaTarget,
+                                      DEFAULT_CHUNK_SIZE);
+            }
+            if (javaTarget instanceof WritableByteChannel) {
+                return new ChannelSink((WritableByteChannel)javaTarget,
+                                       DEFAULT_CHUNK_SIZE);
+            }
+        }
+        if (target.respondsTo("write")) {
+            return new IOSink(target, DEFAULT_CHUNK_SIZE);
+        }
+        throw context.getRuntime().newTypeError(
+                "can't write JSON to " + target.getMetaClass());
+    }
+
+    /**
+     * A sink calling <code>write</code> with a new String for each chunk.
+     */
+    static final class IOSink extends GeneratorSink {
+        private final IRubyObject io;
+
+        IOSink(IRubyObject io, int chunkSize) {
+            super(chunkSize);
+            this.io = io;
+        }
+
+        @Override
+        void write(ThreadContext context, ByteList chunk) {
+            RubyString str = RubyString.newString(context.getRuntime(),
+                    chunk.unsafeBytes(), chunk.begin(), chunk.length());
+            io.callMethod(context, "write", str);
+        }
+    }
+
+    /**
+     * A sink writing straight to a Java {@link OutputStream}.
+     */
+    static final class StreamSink extends GeneratorSink {
+        private final OutputStream out;
+
+        StreamSink(OutputStream out, int chunkSize) {
+            super(chunkSize);
+            this.out = out;
+        }
+
+        @Override
+        void write(ThreadContext context, ByteList chunk) {
+            try {
+                out.write(chunk.unsafeBytes(), chunk.begin(), chunk.length());
+            } catch (IOException e) {
+                Ruby runtime = context.getRuntime();
+                throw runtime.newIOErrorFromException(e);
+            }
+        }
+    }
+
+    /**
+     * A sink writing to a blocking NIO channel. For non-blocking channels,
+     * use {@link GeneratorOutput} instead.
+     */
+    static final class ChannelSink extends GeneratorSink {
+        private final WritableByteChannel channel;
+
+        ChannelSink(WritableByteChannel channel, int chunkSize) {
+            super(chunkSize);
+            this.channel = channel;
+        }
+
+        @Override
+        void write(ThreadContext context, ByteList chunk) {
+            ByteBuffer buffer = ByteBuffer.wrap(chunk.unsafeBytes(),
+                                                chunk.begin(), chunk.length());
+            try {
+                while (buffer.hasRemaining()) channel.write(buffer);
+            } catch (IOException e) {
+                Ruby runtime = context.getRuntime();
+                throw runtime.newIOErrorFromException(e);
+            }
+        }
+    }
+
+    /**
+     * A sink keeping the output in memory, for documents generated into a
+     * new String that outgrow a scratch buffer (see
+     * {@link Generator#MAX_SCRATCH_SIZE}). Each chunk is kept as is, by
+     * taking the buffer's byte array over and giving it a new one, so the
+     * output is never copied as it grows; the String is assembled once, at
+     * its exact size, by {@link #toRubyString}.
+     */
+    static final class SegmentSink extends GeneratorSink {
+        private List<ByteList> segments;
+        private int size = 0;
+
+        SegmentSink(int chunkSize) {
+            super(chunkSize);
+        }
+
+        @Override
+        void write(ThreadContext context, ByteList chunk) {
+            if (segments == null) segments = new ArrayList<ByteList>();
+            byte[] bytes = chunk.unsafeBytes();
+            segments.add(new ByteList(bytes, chunk.begin(), chunk.length(),
+                                      false));
+            size += chunk.length();
+            chunk.setUnsafeBytes(new byte[bytes.length]);
+        }
+
+        @Override
+        boolean keepsOutput() {
+            return true;
+        }
+
+        /**
+         * Returns whether any output was written to this sink.
+         */
+        boolean isEmpty() {
+            return segments == null;
+        }
+
+        /**
+         * Returns a new String of the output written to this sink, followed
+         * by the contents of the given buffer.
+         */
+        RubyString toRubyString(Ruby runtime, ByteList rest) {
+            byte[] bytes = new byte[size + rest.length()];
+            int pos = 0;
+            for (ByteList segment : segments) {
+                System.arraycopy(segment.unsafeBytes(), segment.begin(),
+                                 bytes, pos, segment.length());
+                pos += segment.length();
+            }
+            System.arraycopy(rest.unsafeBytes(), rest.begin(), bytes, pos,
+                             rest.length());
+            return RubyString.newStringNoCopy(runtime, bytes);
+        }
+    }
+}
@@ -76,12 +76,43 @@ public class GeneratorState extends RubyObject {
      */
     private boolean asciiOnly = DEFAULT_ASCII_ONLY;
     static final boolean DEFAULT_ASCII_ONLY = false;
+    /**
+     * The number of elements from which a top-level array or object is
+     * generated on several threads at once. <code>0</code> means never.
+     */
+    private int parallelThreshold = 0;
+    /**
+     * Whether the JSON of deeply frozen objects is cached (see
+     * {@link FrozenCache}).
+     */
+    private boolean frozenCache = false;
+    /**
+     * Whether Enumerators without a <code>to_json</code> of their own are
+     * generated as arrays.
+     */
+    private boolean enumerables = false;
 
     /**
-     * The current depth (inside a #to_json call)
+     * The depth to start generating at. The generator keeps track of the
+     * current depth on its own, and only stores it here while calling
+     * <code>#to_json</code> methods, so that they can continue at the right
+     * level; a frozen state is never written to, and can be shared by any
+     * number of threads.
      */
     private int depth = 0;
 
+    /**
+     * The layout strings in ready-to-write form, rebuilt as soon as any of
+     * them is set, so that generating never writes to the state.
+     */
+    private Layout layout = Layout.COMPACT;
+
+    /**
+     * The output being generated, while an <code>append_json</code> hook
+     * runs (see {@link #append}); <code>null</code> otherwise.
+     */
+    private ByteList buffer;
+
     static final ObjectAllocator ALLOCATOR = new ObjectAllocator() {
         public IRubyObject allocate(Ruby runtime, RubyClass klazz) {
             return new GeneratorState(runtime, klazz);
@@ -97,8 +128,10 @@ public GeneratorState(Ruby runtime, RubyClass metaClass) {
      * 
      * <p>Creates a State object from <code>opts</code>, which ought to be
      * {@link RubyHash Hash} to create a new <code>State</code> instance
-     * configured by <codes>opts</code>, something else to create an
-     * unconfigured instance. If <code>opts</code> is a <code>State</code>
+     * configured by <codes>opts</code>, something else to get an
+     * unconfigured instance: <code>JSON::SAFE_STATE_PROTOTYPE</code> itself
+     * if it is frozen (as <code>JSON</code> leaves it for this generator), a
+     * copy of it otherwise. If <code>opts</code> is a <code>State</code>
      * object, it is just returned.
      * @param clazzParam The receiver of the method call
      *                   ({@link RubyClass} <code>State</code>)
@@ -130,8 +163,11 @@ static GeneratorState fromState(ThreadContext context, RuntimeInfo info,
             }
         }
 
-        // for other values, return the safe prototype
-        return (GeneratorState)info.getSafeStatePrototype(context).dup();
+        // for other values, return the safe prototype, which is shared as is
+        // once frozen, as it is never written to then
+        GeneratorState prototype = info.getSafeStatePrototype(context);
+        if (prototype.isFrozen()) return prototype;
+        return (GeneratorState)prototype.dup();
     }
 
     /**
@@ -159,6 +195,25 @@ static GeneratorState fromState(ThreadContext context, RuntimeInfo info,
      * <code>-Infinity</code> should be generated, otherwise an exception is
      * thrown if these values are encountered.
      * This options defaults to <code>false</code>.
+     * <dt><code>:parallel_threshold</code>
+     * <dd>the number of elements from which a top-level array or object is
+     * split into ranges, generated on several threads at once (default:
+     * <code>0</code>, never). The elements must be plain data (core types
+     * only); if any of them has its own <code>to_json</code>, the whole
+     * container is generated on the calling thread instead.
+     * <dt><code>:frozen_cache</code>
+     * <dd><code>true</code> to remember the JSON of deeply frozen Hashes,
+     * Arrays and Strings (of 128 bytes or more), by identity, and reuse it
+     * whenever the same objects are generated again (default:
+     * <code>false</code>). Only applies to states without any layout
+     * strings; see
+     * <code>JSON::Ext::Generator.frozen_cache_stats</code>.
+     * <dt><code>:enumerables</code>
+     * <dd><code>true</code> to generate Enumerators (including lazy ones)
+     * that don't define <code>to_json</code> as arrays of the elements
+     * yielded by <code>each</code>, without collecting them first (default:
+     * <code>false</code>, they are generated as Strings). Other Enumerables,
+     * such as Structs and Ranges, are generated as without the option.
      */
     @JRubyMethod(optional=1, visibility=Visibility.PRIVATE)
     public IRubyObject initialize(ThreadContext context, IRubyObject[] args) {
@@ -178,9 +233,13 @@ public IRubyObject initialize_copy(ThreadContext context, IRubyObject vOrig) {
         this.spaceBefore = orig.spaceBefore;
         this.objectNl = orig.objectNl;
         this.arrayNl = orig.arrayNl;
+        this.layout = orig.layout;
         this.maxNesting = orig.maxNesting;
         this.allowNaN = orig.allowNaN;
         this.asciiOnly = orig.asciiOnly;
+        this.parallelThreshold = orig.parallelThreshold;
+        this.frozenCache = orig.frozenCache;
+        this.enumerables = orig.enumerables;
         this.depth = orig.depth;
         return this;
     }
@@ -198,6 +257,81 @@ public IRubyObject generate(ThreadContext context, IRubyObject obj) {
         return result;
     }
 
+    /**
+     * <code>State#generate_to(obj, io)</code>
+     *
+     * <p>Generates <code>obj</code> like {@link #generate}, but writes the
+     * result to <code>io</code> in chunks as it goes, instead of building
+     * the whole document in memory. <code>io</code> may be an
+     * <code>IO</code>, a <code>java.io.OutputStream</code> or anything
+     * responding to <code>write</code>. Returns <code>io</code>.
+     *
+     * <p>If <code>io</code> is a String, the document is appended to it in
+     * place instead, reusing its spare capacity.
+     */
+    @JRubyMethod
+    public IRubyObject generate_to(ThreadContext context, IRubyObject obj,
+                                   IRubyObject io) {
+        if (io instanceof RubyString) {
+            Generator.generateJson(context, obj, this, (RubyString)io);
+        } else {
+            Generator.generateJson(context, obj, this,
+                                   GeneratorSink.forTarget(context, io));
+        }
+        return io;
+    }
+
+    /**
+     * <code>State#append(obj)</code>
+     *
+     * <p>Appends the JSON form of <code>obj</code> to the output being
+     * generated. Only valid within an <code>append_json(state)</code>
+     * method, which the generator calls instead of <code>to_json</code>
+     * on objects defining it, so that they can write their members straight
+     * into the output. Returns the state, so calls can be chained.
+     */
+    @JRubyMethod
+    public IRubyObject append(ThreadContext context, IRubyObject obj) {
+        if (buffer == null) {
+            throw Utils.newException(context, Utils.M_GENERATOR_ERROR,
+                    "State#append called outside of append_json");
+        }
+        Generator.appendJson(context, obj, this, buffer);
+        return this;
+    }
+
+    /**
+     * Returns a new, unfrozen state with the same configuration.
+     */
+    GeneratorState copy(ThreadContext context) {
+        GeneratorState copy =
+            new GeneratorState(context.getRuntime(), getMetaClass().getRealClass());
+        copy.initialize_copy(context, this);
+        return copy;
+    }
+
+    /**
+     * Returns a new, unfrozen state with the same configuration, except for
+     * the layout strings, which are all empty.
+     */
+    GeneratorState compactCopy(ThreadContext context) {
+        GeneratorState copy = copy(context);
+        copy.indent = copy.space = copy.spaceBefore = ByteList.EMPTY_BYTELIST;
+        copy.objectNl = copy.arrayNl = ByteList.EMPTY_BYTELIST;
+        copy.layout = Layout.COMPACT;
+        return copy;
+    }
+
+    /**
+     * Sets the output buffer {@link #append} writes to, returning the
+     * previous one.
+     */
+    ByteList swapBuffer(ByteList newBuffer) {
+        ByteList previous = buffer;
+        buffer = newBuffer;
+        return previous;
+    }
+
     /**
      * Ensures the given string is in the form "[...]" or "{...}", being
      * possibly surrounded by white space.
@@ -257,7 +391,9 @@ public RubyString indent_get(ThreadContext context) {
 
     @JRubyMethod(name="indent=")
     public IRubyObject indent_set(ThreadContext context, IRubyObject indent) {
+        testFrozen();
         this.indent = prepareByteList(context, indent);
+        updateLayout();
         return indent;
     }
 
@@ -272,7 +408,9 @@ public RubyString space_get(ThreadContext context) {
 
     @JRubyMethod(name="space=")
     public IRubyObject space_set(ThreadContext context, IRubyObject space) {
+        testFrozen();
         this.space = prepareByteList(context, space);
+        updateLayout();
         return space;
     }
 
@@ -288,7 +426,9 @@ public RubyString space_before_get(ThreadContext context) {
     @JRubyMethod(name="space_before=")
     public IRubyObject space_before_set(ThreadContext context,
                                         IRubyObject spaceBefore) {
+        testFrozen();
         this.spaceBefore = prepareByteList(context, spaceBefore);
+        updateLayout();
         return spaceBefore;
     }
 
@@ -304,7 +444,9 @@ public RubyString object_nl_get(ThreadContext context) {
     @JRubyMethod(name="object_nl=")
     public IRubyObject object_nl_set(ThreadContext context,
                                      IRubyObject objectNl) {
+        testFrozen();
         this.objectNl = prepareByteList(context, objectNl);
+        updateLayout();
         return objectNl;
     }
 
@@ -320,7 +462,9 @@ public RubyString array_nl_get(ThreadContext context) {
     @JRubyMethod(name="array_nl=")
     public IRubyObject array_nl_set(ThreadContext context,
                                     IRubyObject arrayNl) {
+        testFrozen();
         this.arrayNl = prepareByteList(context, arrayNl);
+        updateLayout();
         return arrayNl;
     }
 
@@ -343,6 +487,7 @@ public RubyInteger max_nesting_get(ThreadContext context) {
 
     @JRubyMethod(name="max_nesting=")
     public IRubyObject max_nesting_set(IRubyObject max_nesting) {
+        testFrozen();
         maxNesting = RubyNumeric.fix2int(max_nesting);
         return max_nesting;
     }
@@ -365,6 +510,37 @@ public RubyBoolean ascii_only_p(ThreadContext context) {
         return context.getRuntime().newBoolean(asciiOnly);
     }
 
+    /**
+     * Returns the number of elements from which top-level containers are
+     * generated in parallel, or <code>0</code> if they never are.
+     */
+    public int getParallelThreshold() {
+        return parallelThreshold;
+    }
+
+    @JRubyMethod(name="parallel_threshold")
+    public RubyInteger parallel_threshold_get(ThreadContext context) {
+        return context.getRuntime().newFixnum(parallelThreshold);
+    }
+
+    public boolean cachesFrozen() {
+        return frozenCache;
+    }
+
+    @JRubyMethod(name="frozen_cache?")
+    public RubyBoolean frozen_cache_p(ThreadContext context) {
+        return context.getRuntime().newBoolean(frozenCache);
+    }
+
+    public boolean generatesEnumerables() {
+        return enumerables;
+    }
+
+    @JRubyMethod(name="enumerables?")
+    public RubyBoolean enumerables_p(ThreadContext context) {
+        return context.getRuntime().newBoolean(enumerables);
+    }
+
     public int getDepth() {
         return depth;
     }
@@ -376,10 +552,21 @@ public RubyInteger depth_get(ThreadContext context) {
 
     @JRubyMethod(name="depth=")
     public IRubyObject depth_set(IRubyObject vDepth) {
+        testFrozen();
         depth = RubyNumeric.fix2int(vDepth);
         return vDepth;
     }
 
+    /**
+     * Publishes the depth a generation session has reached, for the
+     * <code>#to_json</code> methods it calls, or the depth it stopped at on
+     * a <code>NestingError</code>. The session makes sure this is never
+     * called on a frozen state.
+     */
+    void setDepth(int depth) {
+        this.depth = depth;
+    }
+
     private ByteList prepareByteList(ThreadContext context, IRubyObject value) {
         RubyString str = value.convertToString();
         RuntimeInfo info = RuntimeInfo.forRuntime(context.getRuntime());
@@ -399,6 +586,7 @@ private ByteList prepareByteList(ThreadContext context, IRubyObject value) {
      */
     @JRubyMethod
     public IRubyObject configure(ThreadContext context, IRubyObject vOpts) {
+        testFrozen();
         OptionsReader opts = new OptionsReader(context, vOpts);
 
         ByteList indent = opts.getString("indent");
@@ -415,10 +603,14 @@ public IRubyObject configure(ThreadContext context, IRubyObject vOpts) {
 
         ByteList objectNl = opts.getString("object_nl");
         if (objectNl != null) this.objectNl = objectNl;
+        updateLayout();
 
         maxNesting = opts.getInt("max_nesting", DEFAULT_MAX_NESTING);
         allowNaN   = opts.getBool("allow_nan",  DEFAULT_ALLOW_NAN);
         asciiOnly  = opts.getBool("ascii_only", DEFAULT_ASCII_ONLY);
+        parallelThreshold = opts.getInt("parallel_threshold", 0);
+        frozenCache = opts.getBool("frozen_cache", false);
+        enumerables = opts.getBool("enumerables", false);
 
         depth = opts.getInt("depth", 0);
 
@@ -449,26 +641,101 @@ public RubyHash to_h(ThreadContext context) {
         return result;
     }
 
-    public int increaseDepth() {
-        depth++;
-        checkMaxNesting();
-        return depth;
+    /**
+     * Returns the layout of this state's output.
+     */
+    Layout getLayout() {
+        return layout;
     }
 
-    public int decreaseDepth() {
-        return --depth;
+    private void updateLayout() {
+        layout = new Layout(indent, space, spaceBefore, objectNl, arrayNl);
     }
 
     /**
-     * Checks if the current depth is allowed as per this state's options.
-     * @param context
-     * @param depth The corrent depth
+     * The bytes written around array and object elements, precomputed
+     * from a state's layout strings, so that the generator does no layout
+     * work of its own per element. Instances may be shared between threads:
+     * only their indentation table changes, and it is copied on write.
      */
-    private void checkMaxNesting() {
-        if (maxNesting != 0 && depth > maxNesting) {
-            depth--;
-            throw Utils.newException(getRuntime().getCurrentContext(),
-                    Utils.M_NESTING_ERROR, "nesting of " + depth + " is too deep");
+    static final class Layout {
+        /** The layout of a state without layout strings */
+        static final Layout COMPACT = new Layout(ByteList.EMPTY_BYTELIST,
+                ByteList.EMPTY_BYTELIST, ByteList.EMPTY_BYTELIST,
+                ByteList.EMPTY_BYTELIST, ByteList.EMPTY_BYTELIST);
+        /**
+         * The number of depths whose indentation is computed up front;
+         * deeper ones are added whenever needed.
+         */
+        private static final int INDENT_DEPTHS = 16;
+
+        /** Whether all the layout strings are empty */
+        final boolean compact;
+        final byte[] arrayNl;
+        final byte[] objectNl;
+        /** <code>','</code> followed by <code>array_nl</code> */
+        final byte[] arrayDelim;
+        /** <code>','</code> followed by <code>object_nl</code> */
+        final byte[] objectDelim;
+        /** <code>space_before</code>, <code>':'</code> and <code>space</code> */
+        final byte[] colon;
+
+        private final ByteList indentUnit;
+        /**
+         * The indentation for each depth, computed as deep as needed. A
+         * deeper table replaces it whole, so threads sharing the layout only
+         * ever see complete tables, and at worst compute the same ones.
+         */
+        private volatile byte[][] indents;
+
+        private Layout(ByteList indent, ByteList space, ByteList spaceBefore,
+                       ByteList objectNl, ByteList arrayNl) {
+            this.indentUnit = indent;
+            this.compact = indent.length() == 0 && space.length() == 0
+                    && spaceBefore.length() == 0 && objectNl.length() == 0
+                    && arrayNl.length() == 0;
+            this.arrayNl = arrayNl.bytes();
+            this.objectNl = objectNl.bytes();
+            this.arrayDelim = concat(',', this.arrayNl);
+            this.objectDelim = concat(',', this.objectNl);
+            ByteList colon = new ByteList(spaceBefore.length() + 1 +
+                                          space.length());
+            colon.append(spaceBefore);
+            colon.append(':');
+            colon.append(space);
+            this.colon = colon.bytes();
+            this.indents = repeatIndent(new byte[0][], INDENT_DEPTHS);
+        }
+
+        private static byte[] concat(char c, byte[] bytes) {
+            byte[] result = new byte[1 + bytes.length];
+            result[0] = (byte)c;
+            System.arraycopy(bytes, 0, result, 1, bytes.length);
+            return result;
+        }
+
+        /**
+         * Returns the indentation for the given depth.
+         */
+        byte[] indent(int depth) {
+            byte[][] table = indents;
+            if (depth < table.length) return table[depth];
+            table = repeatIndent(table, Math.max(depth + 1, 2 * table.length));
+            indents = table;
+            return table[depth];
+        }
+
+        /**
+         * Returns a copy of the given indentation table, extended to the
+         * given number of depths.
+         */
+        private byte[][] repeatIndent(byte[][] table, int depths) {
+            byte[][] newTable = new byte[depths][];
+            System.arraycopy(table, 0, newTable, 0, table.length);
+            for (int i = table.length; i < depths; i++) {
+                newTable[i] = Utils.repeat(indentUnit, i);
+            }
+            return newTable;
         }
     }
 }
@@ -0,0 +1,181 @@
+/*
+ * This code is copyrighted work by Daniel Luz <dev at mernen dot com>.
+ *
+ * Distributed under the Ruby and GPLv2 licenses; see COPYING and GPL files
+ * for details.
+ */
+package json.ext;
+
+import org.jruby.Ruby;
+import org.jruby.RubyArray;
+import org.jruby.RubyClass;
+import org.jruby.RubyFixnum;
+import org.jruby.RubyFloat;
+import org.jruby.RubyObject;
+import org.jruby.anno.JRubyMethod;
+import org.jruby.runtime.Block;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+
+/**
+ * The <code>JSON::Ext::NumericArray</code> class.
+ *
+ * <p>A read-only, Array-compatible container built by the parser for arrays
+ * made only of integers or only of floats, when the
+ * <code>:numeric_arrays</code> option is set. Its elements are kept
+ * unboxed in a <code>long[]</code> or a <code>double[]</code>, and only
+ * turned into Fixnums or Floats when accessed from Ruby.
+ *
+ * <p>Instances are frozen; {@link #to_a} returns a regular, mutable Array
+ * copy.
+ *
+ * @author mernen
+ */
+public class NumericArray extends RubyObject {
+    /** The elements, for an array of integers; <code>null</code> otherwise */
+    private final long[] longs;
+    /** The elements, for an array of floats; <code>null</code> otherwise */
+    private final double[] doubles;
+
+    private NumericArray(Ruby runtime, RubyClass metaClass,
+                         long[] longs, double[] doubles) {
+        super(runtime, metaClass);
+        this.longs = longs;
+        this.doubles = doubles;
+        setFrozen(true);
+    }
+
+    /**
+     * Builds a new NumericArray of integers from the first
+     * <code>size</code> values of the given array, which is copied.
+     */
+    static NumericArray newLongs(Ruby runtime, RubyClass metaClass,
+                                 long[] values, int size) {
+        long[] longs = new long[size];
+        System.arraycopy(values, 0, longs, 0, size);
+        return new NumericArray(runtime, metaClass, longs, null);
+    }
+
+    /**
+     * Builds a new NumericArray of floats from the first <code>size</code>
+     * values of the given array, which is copied.
+     */
+    static NumericArray newDoubles(Ruby runtime, RubyClass metaClass,
+                                   double[] values, int size) {
+        double[] doubles = new double[size];
+        System.arraycopy(values, 0, doubles, 0, size);
+        return new NumericArray(runtime, metaClass, null, doubles);
+    }
+
+    public int size() {
+        return longs != null ? longs.length : doubles.length;
+    }
+
+    /**
+     * Returns whether the elements are floats, rather than integers.
+     */
+    public boolean isFloat() {
+        return doubles != null;
+    }
+
+    public long getLong(int i) {
+        return longs[i];
+    }
+
+    public double getDouble(int i) {
+        return doubles[i];
+    }
+
+    /**
+     * Returns the element at the given position, boxed.
+     */
+    public IRubyObject get(Ruby runtime, int i) {
+        return longs != null ? RubyFixnum.newFixnum(runtime, longs[i])
+                             : RubyFloat.newFloat(runtime, doubles[i]);
+    }
+
+    @JRubyMethod(name = {"[]", "slice"}, required = 1, optional = 1)
+    public IRubyObject op_aref(ThreadContext context, IRubyObject[] args) {
+        if (args.length == 1 && args[0] instanceof RubyFixnum) {
+            return at(context, args[0]);
+        }
+        return to_a(context).callMethod(context, "[]", args);
+    }
+
+    @JRubyMethod(required = 1)
+    public IRubyObject at(ThreadContext context, IRubyObject index) {
+        Ruby runtime = context.getRuntime();
+        long i = RubyFixnum.num2long(index);
+        if (i < 0) i += size();
+        if (i < 0 || i >= size()) return runtime.getNil();
+        return get(runtime, (int)i);
+    }
+
+    @JRubyMethod
+    public IRubyObject first(ThreadContext context) {
+        Ruby runtime = context.getRuntime();
+        return size() == 0 ? runtime.getNil() : get(runtime, 0);
+    }
+
+    @JRubyMethod
+    public IRubyObject last(ThreadContext context) {
+        Ruby runtime = context.getRuntime();
+        return size() == 0 ? runtime.getNil() : get(runtime, size() - 1);
+    }
+
+    @JRubyMethod(name = {"size", "length"})
+    public IRubyObject size(ThreadContext context) {
+        return context.getRuntime().newFixnum(size());
+    }
+
+    @JRubyMethod(name = "empty?")
+    public IRubyObject empty_p(ThreadContext context) {
+        return context.getRuntime().newBoolean(size() == 0);
+    }
+
+    @JRubyMethod(frame = true)
+    public IRubyObject each(ThreadContext context, Block block) {
+        Ruby runtime = context.getRuntime();
+        if (!block.isGiven()) {
+            return callMethod(context, "enum_for", runtime.newSymbol("each"));
+        }
+        for (int i = 0, t = size(); i < t; i++) {
+            block.yield(context, get(runtime, i));
+        }
+        return this;
+    }
+
+    /**
+     * <code>NumericArray#to_a</code>
+     *
+     * <p>Returns a new, regular {@link RubyArray Array} with the same
+     * elements.
+     */
+    @JRubyMethod(name = {"to_a", "to_ary"})
+    public RubyArray to_a(ThreadContext context) {
+        Ruby runtime = context.getRuntime();
+        IRubyObject[] elements = new IRubyObject[size()];
+        for (int i = 0; i < elements.length; i++) {
+            elements[i] = get(runtime, i);
+        }
+        return RubyArray.newArrayNoCopy(runtime, elements);
+    }
+
+    @JRubyMethod(name = "==", required = 1)
+    public IRubyObject op_equal(ThreadContext context, IRubyObject other) {
+        if (other instanceof NumericArray) {
+            other = ((NumericArray)other).to_a(context);
+        }
+        return to_a(context).callMethod(context, "==", other);
+    }
+
+    @JRubyMethod(name = {"inspect", "to_s"})
+    public IRubyObject inspect(ThreadContext context) {
+        return to_a(context).inspect();
+    }
+
+    @JRubyMethod(rest = true)
+    public IRubyObject to_json(ThreadContext context, IRubyObject[] args) {
+        return to_a(context).callMethod(context, "to_json", args);
+    }
+}
@@ -10,6 +10,7 @@ import org.jruby.Ruby;
 import org.jruby.RubyArray;
 import org.jruby.RubyClass;
 import org.jruby.RubyEncoding;
+import org.jruby.RubyFixnum;
 import org.jruby.RubyFloat;
 import org.jruby.RubyHash;
 import org.jruby.RubyInteger;
@@ -48,7 +49,13 @@ public class Parser extends RubyObject {
     private boolean allowNaN;
     private boolean symbolizeNames;
     private RubyClass objectClass;
+    private boolean compactObjects;
     private RubyClass arrayClass;
+    private boolean numericArrays;
+    private IRubyObject loadProc;
+    private RecordSchema recordSchema;
+    private int recordDepth;
+    private boolean descentEngine;
 
     private static final int DEFAULT_MAX_NESTING = 19;
 
@@ -122,10 +129,49 @@ public class Parser extends RubyObject {
      * defaults to <code>true</code>.
      * 
      * <dt><code>:object_class</code>
-     * <dd>Defaults to Hash.
+     * <dd>Defaults to Hash. Pass {@link CompactHash JSON::Ext::CompactHash}
+     * to get frozen, memory-compact objects instead.
      * 
      * <dt><code>:array_class</code>
      * <dd>Defaults to Array.
+     *
+     * <dt><code>:numeric_arrays</code>
+     * <dd>If set to <code>true</code>, non-empty arrays made only of integers
+     * (that fit in a Fixnum) or only of floats are parsed into frozen
+     * {@link NumericArray JSON::Ext::NumericArray}s, which store their
+     * elements unboxed. Other arrays are unaffected. This option defaults to
+     * <code>false</code>, and is ignored when <code>:proc</code> is given,
+     * since that must be called with every element.
+     *
+     * <dt><code>:record_class</code>
+     * <dd>A Struct subclass. When set, JSON objects at the nesting depth given
+     * by <code>:record_depth</code> are parsed straight into instances of it:
+     * each key fills the member of the same name, and keys that do not name
+     * a member are skipped without building their values.
+     *
+     * <dt><code>:record_types</code>
+     * <dd>A Hash mapping members of the <code>:record_class</code> to
+     * <code>Integer</code>, <code>Float</code> or <code>String</code>. Number
+     * values of such members are built directly as that type (an integer
+     * literal becomes a Float for a Float member); any other value than
+     * <code>null</code> or one of that type raises a
+     * <code>JSON::ParserError</code>.
+     *
+     * <dt><code>:record_depth</code>
+     * <dd>The nesting depth of the objects to parse as records. Defaults to
+     * 1 (the top-level object); use 2 for an array of records.
+     *
+     * <dt><code>:proc</code>
+     * <dd>An object responding to <code>call</code>, which is called with
+     * each parsed value as soon as it is complete: children before their
+     * containers, and object names before their values. This is what
+     * <code>JSON.load</code> uses for its <code>proc</code> argument.
+     *
+     * <dt><code>:engine</code>
+     * <dd>The scanner to use: <code>:ragel</code> for the table-driven
+     * machines generated by Ragel (the default), or <code>:descent</code>
+     * for a hand-written recursive-descent scanner that accepts the same
+     * inputs.
      * </dl>
      */
     @JRubyMethod(name = "new", required = 1, optional = 1, meta = true)
@@ -151,13 +197,42 @@ public class Parser extends RubyObject {
         this.createId =
             opts.getBool("create_additions", true) ? getCreateId(context)
                                                    : null;
-        this.objectClass = opts.getClass("object_class", runtime.getHash());
+        IRubyObject objectClass = opts.get("object_class");
+        this.compactObjects = objectClass instanceof RubyClass &&
+            ((RubyClass)objectClass).hasModuleInHierarchy(info.compactHashClass);
+        this.objectClass = compactObjects
+            ? (RubyClass)objectClass
+            : opts.getClass("object_class", runtime.getHash());
         this.arrayClass = opts.getClass("array_class", runtime.getArray());
+        this.numericArrays = opts.getBool("numeric_arrays", false);
+        IRubyObject proc = opts.get("proc");
+        this.loadProc = proc == null || proc.isNil() ? null : proc;
+
+        IRubyObject recordClass = opts.get("record_class");
+        this.recordSchema = recordClass == null || recordClass.isNil()
+            ? null
+            : RecordSchema.newSchema(context, recordClass,
+                                     opts.get("record_types"));
+        this.recordDepth = opts.getInt("record_depth", 1);
+        this.descentEngine = isDescentEngine(context, opts.get("engine"));
 
         this.vSource = source;
         return this;
     }
 
+    /**
+     * Reads the <code>:engine</code> option, returning whether the
+     * recursive-descent engine was selected.
+     */
+    private static boolean isDescentEngine(ThreadContext context,
+                                           IRubyObject engine) {
+        if (engine == null || engine.isNil()) return false;
+        String name = engine.asJavaString();
+        if (name.equals("descent")) return true;
+        if (name.equals("ragel")) return false;
+        throw context.getRuntime().newArgumentError("unknown engine " + name);
+    }
+
     /**
      * Checks the given string's encoding. If a non-UTF-8 encoding is detected,
      * a converted copy is returned.
@@ -229,6 +304,9 @@ public class Parser extends RubyObject {
      */
     @JRubyMethod
     public IRubyObject parse(ThreadContext context) {
+        if (descentEngine) {
+            return new DescentSession(this, context).parse();
+        }
         return new ParserSession(this, context).parse();
     }
 
@@ -264,18 +342,31 @@ public class Parser extends RubyObject {
     // Ragel uses lots of fall-through
     @SuppressWarnings("fallthrough")
     private static class ParserSession {
-        private final Parser parser;
-        private final ThreadContext context;
-        private final ByteList byteList;
-        private final byte[] data;
-        private final StringDecoder decoder;
-        private int currentNesting = 0;
+        final Parser parser;
+        final ThreadContext context;
+        final ByteList byteList;
+        final byte[] data;
+        final StringDecoder decoder;
+        int currentNesting = 0;
+        /**
+         * The pairs of the objects being parsed, when building
+         * {@link CompactHash}es. Each object pushes its pairs on top of the
+         * ones of its enclosing objects, and pops them once complete.
+         */
+        IRubyObject[] pairStack;
+        int pairTop = 0;
+        /**
+         * Scratch space for the elements of numeric arrays. As those arrays
+         * cannot nest, one of each is enough for a session.
+         */
+        private long[] longScratch;
+        private double[] doubleScratch;
 
         // initialization value for all state variables.
         // no idea about the origins of this value, ask Flori ;)
         private static final int EVIL = 0x666;
 
-        private ParserSession(Parser parser, ThreadContext context) {
+        ParserSession(Parser parser, ThreadContext context) {
             this.parser = parser;
             this.context = context;
             this.byteList = parser.vSource.getByteList();
@@ -283,17 +374,143 @@ public class Parser extends RubyObject {
             this.decoder = new StringDecoder(context);
         }
 
-        private RaiseException unexpectedToken(int absStart, int absEnd) {
+        RaiseException unexpectedToken(int absStart, int absEnd) {
             RubyString msg = getRuntime().newString("unexpected token at '")
                     .cat(data, absStart, absEnd - absStart)
                     .cat((byte)'\'');
             return newException(Utils.M_PARSER_ERROR, msg);
         }
 
-        private Ruby getRuntime() {
+        Ruby getRuntime() {
             return context.getRuntime();
         }
 
+        /**
+         * Returns the value parsed for a record slot from the given absolute
+         * offset, after checking that it matches the slot's declared type.
+         * @throws RaiseException <code>ParserError</code> if it does not
+         */
+        IRubyObject checkRecordValue(int slot, IRubyObject value, int absStart) {
+            RecordSchema schema = parser.recordSchema;
+            if (schema.accepts(slot, value)) return value;
+            RubyString msg = getRuntime().newString("expected "
+                    + schema.describe(slot) + " at '")
+                    .cat(data, absStart, byteList.begin() + byteList.length()
+                                         - absStart)
+                    .cat((byte)'\'');
+            throw newException(Utils.M_PARSER_ERROR, msg);
+        }
+
+        /**
+         * Raises a NestingError if the current nesting level exceeds the
+         * maximum allowed.
+         */
+        void checkNesting() {
+            if (parser.maxNesting > 0 && currentNesting > parser.maxNesting) {
+                throw newException(Utils.M_NESTING_ERROR,
+                    "nesting of " + currentNesting + " is too deep");
+            }
+        }
+
+        RubyArray newArray() {
+            // this is guaranteed to be a RubyArray due to the earlier
+            // allocator test at OptionsReader#getClass
+            return (RubyArray)parser.arrayClass.newInstance(context,
+                    IRubyObject.NULL_ARRAY, Block.NULL_BLOCK);
+        }
+
+        /**
+         * Returns a new Hash to store a parsed object on, or <code>null</code>
+         * if the object will be a {@link CompactHash}, whose pairs are
+         * collected on {@link #pairStack} instead.
+         */
+        RubyHash newObject() {
+            if (parser.compactObjects) return null;
+            // this is guaranteed to be a RubyHash due to the earlier
+            // allocator test at OptionsReader#getClass
+            return (RubyHash)parser.objectClass.newInstance(context,
+                    IRubyObject.NULL_ARRAY, Block.NULL_BLOCK);
+        }
+
+        /**
+         * Stores a pair on an object started by {@link #newObject}.
+         */
+        void storePair(RubyHash result, IRubyObject name, IRubyObject value) {
+            if (result != null) {
+                result.op_aset(context, name, value);
+                return;
+            }
+            if (pairStack == null) {
+                pairStack = new IRubyObject[32];
+            } else if (pairTop + 2 > pairStack.length) {
+                IRubyObject[] newStack = new IRubyObject[pairStack.length * 2];
+                System.arraycopy(pairStack, 0, newStack, 0, pairTop);
+                pairStack = newStack;
+            }
+            pairStack[pairTop++] = name;
+            pairStack[pairTop++] = value;
+        }
+
+        /**
+         * Completes an object started by {@link #newObject}, whose pairs
+         * were pushed from the <code>mark</code> position of the pair stack
+         * onwards, and returns its final value.
+         */
+        IRubyObject finishObject(RubyHash result, int mark) {
+            if (result != null) return createObject(result);
+            CompactHash object = CompactHash.newCompactHash(getRuntime(),
+                    parser.objectClass, pairStack, mark, pairTop);
+            for (int i = mark; i < pairTop; i++) pairStack[i] = null;
+            pairTop = mark;
+            return createObject(object);
+        }
+
+        /**
+         * Passes a completed value to the <code>:proc</code> option, if
+         * given, and returns it.
+         */
+        IRubyObject loaded(IRubyObject value) {
+            if (parser.loadProc != null) {
+                parser.loadProc.callMethod(context, "call", value);
+            }
+            return value;
+        }
+
+        /**
+         * Returns the key to store a parsed object name under, which is
+         * a Symbol if <code>symbolize_names</code> is enabled.
+         */
+        IRubyObject createName(RubyString name) {
+            if (parser.symbolizeNames) {
+                return context.getRuntime().is1_9() ? name.intern19()
+                                                    : name.intern();
+            }
+            return name;
+        }
+
+        /**
+         * Returns the final value for a parsed object, after attempting to
+         * de-serialize it through <code>json_create</code>.
+         */
+        IRubyObject createObject(IRubyObject result) {
+            if (parser.createId != null) {
+                IRubyObject vKlassName = result instanceof CompactHash
+                    ? ((CompactHash)result).op_aref(context, parser.createId)
+                    : ((RubyHash)result).op_aref(context, parser.createId);
+                if (!vKlassName.isNil()) {
+                    // might throw ArgumentError, we let it propagate
+                    IRubyObject klass = parser.info.jsonModule.
+                            callMethod(context, "deep_const_get", vKlassName);
+                    if (klass.respondsTo("json_creatable?") &&
+                        klass.callMethod(context, "json_creatable?").isTrue()) {
+
+                        return klass.callMethod(context, "json_create", result);
+                    }
+                }
+            }
+            return result;
+        }
+
         %%{
             machine JSON_common;
 
@@ -436,7 +653,7 @@ public class Parser extends RubyObject {
             %% write exec;
 
             if (cs >= JSON_value_first_final && result != null) {
-                return new ParserResult(result, p);
+                return new ParserResult(loaded(result), p);
             } else {
                 return null;
             }
@@ -456,22 +673,58 @@ public class Parser extends RubyObject {
         }%%
 
         ParserResult parseInteger(int p, int pe) {
+            int new_p = scanInteger(p, pe);
+            if (new_p == -1) return null;
+            return new ParserResult(createInteger(p, new_p - 1), new_p);
+        }
+
+        /**
+         * Scans an integer starting at <code>p</code>, returning the
+         * position past the character after it (in the same fashion as
+         * {@link #parseInteger}), or <code>-1</code> if there is no integer
+         * there.
+         */
+        int scanInteger(int p, int pe) {
             int cs = EVIL;
 
             %% write init;
-            int memo = p;
             %% write exec;
 
             if (cs < JSON_integer_first_final) {
-                return null;
+                return -1;
             }
+            return p + 1;
+        }
 
-            ByteList num = absSubSequence(memo, p);
+        /**
+         * Builds an Integer from the digits between the given absolute
+         * offsets, which must have been validated by {@link #scanInteger}.
+         */
+        RubyInteger createInteger(int start, int end) {
+            int len = end - start;
+            // up to 18 digits (plus sign) always fit in a long
+            if (len <= 18) {
+                return RubyFixnum.newFixnum(getRuntime(), parseLong(start, end));
+            }
+            ByteList num = absSubSequence(start, end);
             // note: this is actually a shared string, but since it is temporary and
             //       read-only, it doesn't really matter
             RubyString expr = RubyString.newStringLight(getRuntime(), num);
-            RubyInteger number = RubyNumeric.str2inum(getRuntime(), expr, 10, true);
-            return new ParserResult(number, p + 1);
+            return RubyNumeric.str2inum(getRuntime(), expr, 10, true);
+        }
+
+        /**
+         * Reads the integer between the given absolute offsets, which must
+         * have been validated by {@link #scanInteger} and be at most 18
+         * characters long.
+         */
+        private long parseLong(int start, int end) {
+            int i = start;
+            boolean negative = data[i] == '-';
+            if (negative) i++;
+            long value = 0;
+            for (; i < end; i++) value = value * 10 + (data[i] - '0');
+            return negative ? -value : value;
         }
 
         %%{
@@ -492,22 +745,39 @@ public class Parser extends RubyObject {
         }%%
 
         ParserResult parseFloat(int p, int pe) {
+            int new_p = scanFloat(p, pe);
+            if (new_p == -1) return null;
+            return new ParserResult(createFloat(p, new_p - 1), new_p);
+        }
+
+        /**
+         * Scans a float starting at <code>p</code>, returning the position
+         * past the character after it (in the same fashion as
+         * {@link #parseFloat}), or <code>-1</code> if there is no float there.
+         */
+        int scanFloat(int p, int pe) {
             int cs = EVIL;
 
             %% write init;
-            int memo = p;
             %% write exec;
 
             if (cs < JSON_float_first_final) {
-                return null;
+                return -1;
             }
+            return p + 1;
+        }
 
-            ByteList num = absSubSequence(memo, p);
+        /**
+         * Builds a Float from the number between the given absolute offsets,
+         * which must have been validated by {@link #scanFloat} or
+         * {@link #scanInteger}.
+         */
+        RubyFloat createFloat(int start, int end) {
+            ByteList num = absSubSequence(start, end);
             // note: this is actually a shared string, but since it is temporary and
             //       read-only, it doesn't really matter
             RubyString expr = RubyString.newStringLight(getRuntime(), num);
-            RubyFloat number = RubyNumeric.str2fnum(getRuntime(), expr, true);
-            return new ParserResult(number, p + 1);
+            return RubyNumeric.str2fnum(getRuntime(), expr, true);
         }
 
         %%{
@@ -516,45 +786,52 @@ public class Parser extends RubyObject {
 
             write data;
 
-            action parse_string {
-                int offset = byteList.begin();
-                ByteList decoded = decoder.decode(byteList, memo + 1 - offset,
-                                                  p - offset);
-                result = getRuntime().newString(decoded);
-                if (result == null) {
-                    fhold;
-                    fbreak;
-                } else {
-                    fexec p + 1;
-                }
-            }
-
             action exit {
                 fhold;
                 fbreak;
             }
 
             main := '"'
-                    ( ( ^(["\\]|0..0x1f)
-                      | '\\'["\\/bfnrt]
-                      | '\\u'[0-9a-fA-F]{4}
-                      | '\\'^(["\\/bfnrtu]|0..0x1f)
-                      )* %parse_string
-                    ) '"' @exit;
+                    ( ^(["\\]|0..0x1f)
+                    | '\\'["\\/bfnrt]
+                    | '\\u'[0-9a-fA-F]{4}
+                    | '\\'^(["\\/bfnrtu]|0..0x1f)
+                    )* '"' @exit;
         }%%
 
         ParserResult parseString(int p, int pe) {
+            int new_p = scanString(p, pe);
+            if (new_p == -1) return null;
+
+            return new ParserResult(createString(p + 1, new_p - 1), new_p);
+        }
+
+        /**
+         * Decodes the string contents between the given absolute offsets,
+         * which must have been validated by {@link #scanString}.
+         */
+        RubyString createString(int start, int end) {
+            int offset = byteList.begin();
+            ByteList decoded = decoder.decode(byteList, start - offset,
+                                              end - offset);
+            return getRuntime().newString(decoded);
+        }
+
+        /**
+         * Scans a string starting at <code>p</code>, returning the position
+         * after its closing quote, or <code>-1</code> if there is no valid
+         * string there.
+         */
+        int scanString(int p, int pe) {
             int cs = EVIL;
-            RubyString result = null;
 
             %% write init;
-            int memo = p;
             %% write exec;
 
-            if (cs >= JSON_string_first_final && result != null) {
-                return new ParserResult(result, p + 1);
+            if (cs >= JSON_string_first_final) {
+                return p + 1;
             } else {
-                return null;
+                return -1;
             }
         }
 
@@ -596,16 +873,13 @@ public class Parser extends RubyObject {
         ParserResult parseArray(int p, int pe) {
             int cs = EVIL;
 
-            if (parser.maxNesting > 0 && currentNesting > parser.maxNesting) {
-                throw newException(Utils.M_NESTING_ERROR,
-                    "nesting of " + currentNesting + " is too deep");
+            checkNesting();
+            // the fast path builds no element objects for :proc to see
+            if (parser.numericArrays && parser.loadProc == null) {
+                ParserResult res = parseNumericArray(p, pe);
+                if (res != null) return res;
             }
-
-            // this is guaranteed to be a RubyArray due to the earlier
-            // allocator test at OptionsReader#getClass
-            RubyArray result =
-                (RubyArray)parser.arrayClass.newInstance(context,
-                    IRubyObject.NULL_ARRAY, Block.NULL_BLOCK);
+            RubyArray result = newArray();
 
             %% write init;
             %% write exec;
@@ -617,6 +891,96 @@ public class Parser extends RubyObject {
             }
         }
 
+        /**
+         * Attempts to parse the array starting at <code>p</code> as a
+         * {@link NumericArray}. Returns <code>null</code>, leaving the array
+         * to the regular parsing, if it is empty, has any element that is not
+         * a number, mixes integers and floats, or has comments or integers
+         * too large for a Fixnum.
+         */
+        ParserResult parseNumericArray(int p, int pe) {
+            if (longScratch == null) {
+                longScratch = new long[16];
+                doubleScratch = new double[16];
+            }
+            boolean floats = false;
+            int size = 0;
+
+            p = skipWhitespace(p + 1, pe); // '['
+            if (p >= pe || data[p] == ']') return null;
+            while (true) {
+                int end = floatEnd(p, pe);
+                if (end != -1) {
+                    if (size == 0) {
+                        floats = true;
+                    } else if (!floats) {
+                        return null;
+                    }
+                    if (size == doubleScratch.length) {
+                        double[] newScratch = new double[size * 2];
+                        System.arraycopy(doubleScratch, 0, newScratch, 0, size);
+                        doubleScratch = newScratch;
+                    }
+                    doubleScratch[size++] =
+                        Double.parseDouble(absSubSequence(p, end).toString());
+                } else {
+                    end = integerEnd(p, pe);
+                    if (end == -1 || floats || end - p > 18) return null;
+                    if (size == longScratch.length) {
+                        long[] newScratch = new long[size * 2];
+                        System.arraycopy(longScratch, 0, newScratch, 0, size);
+                        longScratch = newScratch;
+                    }
+                    longScratch[size++] = parseLong(p, end);
+                }
+
+                p = skipWhitespace(end, pe);
+                if (p >= pe) return null;
+                if (data[p] == ']') break;
+                if (data[p] != ',') return null;
+                p = skipWhitespace(p + 1, pe);
+            }
+
+            RubyClass metaClass = parser.info.numericArrayClass;
+            NumericArray result = floats
+                ? NumericArray.newDoubles(getRuntime(), metaClass,
+                                          doubleScratch, size)
+                : NumericArray.newLongs(getRuntime(), metaClass,
+                                        longScratch, size);
+            return new ParserResult(result, p + 1);
+        }
+
+        /**
+         * Returns the end of the float starting at <code>p</code>, or
+         * <code>-1</code> if there is none.
+         */
+        int floatEnd(int p, int pe) {
+            int end = scanFloat(p, pe);
+            return end == -1 ? -1 : end - 1;
+        }
+
+        /**
+         * Returns the end of the integer starting at <code>p</code>, or
+         * <code>-1</code> if there is none.
+         */
+        int integerEnd(int p, int pe) {
+            int end = scanInteger(p, pe);
+            return end == -1 ? -1 : end - 1;
+        }
+
+        private int skipWhitespace(int p, int pe) {
+            while (p < pe) {
+                switch (data[p]) {
+                case ' ': case '\t': case '\r': case '\n':
+                    p++;
+                    break;
+                default:
+                    return p;
+                }
+            }
+            return p;
+        }
+
         %%{
             machine JSON_object;
             include JSON_common;
@@ -629,7 +993,7 @@ public class Parser extends RubyObject {
                     fhold;
                     fbreak;
                 } else {
-                    result.op_aset(context, lastName, res.result);
+                    storePair(result, lastName, res.result);
                     fexec res.p;
                 }
             }
@@ -640,14 +1004,7 @@ public class Parser extends RubyObject {
                     fhold;
                     fbreak;
                 } else {
-                    RubyString name = (RubyString)res.result;
-                    if (parser.symbolizeNames) {
-                        lastName = context.getRuntime().is1_9()
-                                       ? name.intern19()
-                                       : name.intern();
-                    } else {
-                        lastName = name;
-                    }
+                    lastName = loaded(createName((RubyString)res.result));
                     fexec res.p;
                 }
             }
@@ -671,16 +1028,13 @@ public class Parser extends RubyObject {
             int cs = EVIL;
             IRubyObject lastName = null;
 
-            if (parser.maxNesting > 0 && currentNesting > parser.maxNesting) {
-                throw newException(Utils.M_NESTING_ERROR,
-                    "nesting of " + currentNesting + " is too deep");
+            checkNesting();
+            if (parser.recordSchema != null &&
+                    currentNesting == parser.recordDepth) {
+                return parseRecord(p, pe);
             }
-
-            // this is guaranteed to be a RubyHash due to the earlier
-            // allocator test at OptionsReader#getClass
-            RubyHash result =
-                (RubyHash)parser.objectClass.newInstance(context,
-                    IRubyObject.NULL_ARRAY, Block.NULL_BLOCK);
+            RubyHash result = newObject();
+            int mark = pairTop;
 
             %% write init;
             %% write exec;
@@ -688,24 +1042,356 @@ public class Parser extends RubyObject {
             if (cs < JSON_object_first_final) {
                 return null;
             }
+            return new ParserResult(finishObject(result, mark), p + 1);
+        }
 
-            IRubyObject returnedResult = result;
+        %%{
+            machine JSON_record;
+            include JSON_common;
 
-            // attempt to de-serialize object
-            if (parser.createId != null) {
-                IRubyObject vKlassName = result.op_aref(context, parser.createId);
-                if (!vKlassName.isNil()) {
-                    // might throw ArgumentError, we let it propagate
-                    IRubyObject klass = parser.info.jsonModule.
-                            callMethod(context, "deep_const_get", vKlassName);
-                    if (klass.respondsTo("json_creatable?") &&
-                        klass.callMethod(context, "json_creatable?").isTrue()) {
+            write data;
 
-                        returnedResult = klass.callMethod(context, "json_create", result);
+            action parse_value {
+                if (slot == -1) {
+                    int new_p = skipValue(fpc, pe);
+                    if (new_p == -1) {
+                        fhold;
+                        fbreak;
+                    } else {
+                        fexec new_p;
+                    }
+                } else {
+                    ParserResult res = parseRecordValue(slot, fpc, pe);
+                    if (res == null) {
+                        fhold;
+                        fbreak;
+                    } else {
+                        slots[slot] = res.result;
+                        fexec res.p;
                     }
                 }
             }
-            return new ParserResult(returnedResult, p + 1);
+
+            action parse_name {
+                int new_p = scanString(fpc, pe);
+                if (new_p == -1) {
+                    fhold;
+                    fbreak;
+                } else {
+                    slot = recordSlotFor(fpc + 1, new_p - 1);
+                    fexec new_p;
+                }
+            }
+
+            action exit {
+                fhold;
+                fbreak;
+            }
+
+            a_pair = ignore*
+                     begin_name >parse_name
+                     ignore* name_separator ignore*
+                     begin_value >parse_value;
+
+            main := begin_object
+                    (a_pair (ignore* value_separator a_pair)*)?
+                    ignore* end_object @exit;
+        }%%
+
+        /**
+         * Parses an object into a new instance of the parser's record class.
+         * Values of unknown keys are skipped rather than built.
+         */
+        ParserResult parseRecord(int p, int pe) {
+            int cs = EVIL;
+            RecordSchema schema = parser.recordSchema;
+            IRubyObject[] slots = schema.newSlots(getRuntime());
+            int slot = -1;
+
+            %% write init;
+            %% write exec;
+
+            if (cs < JSON_record_first_final) {
+                return null;
+            }
+            return new ParserResult(schema.newRecord(context, slots), p + 1);
+        }
+
+        /**
+         * Returns the record slot named by the (still encoded) string
+         * between the given absolute offsets, or <code>-1</code> if the
+         * record has no such member.
+         */
+        int recordSlotFor(int start, int end) {
+            for (int i = start; i < end; i++) {
+                if (data[i] == '\\') {
+                    int offset = byteList.begin();
+                    ByteList name = decoder.decode(byteList, start - offset,
+                                                   end - offset);
+                    return parser.recordSchema.slotFor(name.unsafeBytes(),
+                            name.begin(), name.length());
+                }
+            }
+            return parser.recordSchema.slotFor(data, start, end - start);
+        }
+
+        /**
+         * Parses the value for the given record slot. Numbers are built
+         * straight into the slot's declared type; anything else is parsed
+         * as with {@link #parseValue}, and must be <code>null</code> if the
+         * slot has a declared type.
+         */
+        private ParserResult parseRecordValue(int slot, int p, int pe) {
+            int new_p;
+            switch (parser.recordSchema.typeOf(slot)) {
+            case RecordSchema.TYPE_ANY:
+                return parseValue(p, pe);
+            case RecordSchema.TYPE_INTEGER:
+                if (scanFloat(p, pe) != -1) break;
+                new_p = scanInteger(p, pe);
+                if (new_p != -1) {
+                    return new ParserResult(createInteger(p, new_p - 1),
+                                            new_p - 1);
+                }
+                break;
+            case RecordSchema.TYPE_FLOAT:
+                new_p = scanFloat(p, pe);
+                if (new_p == -1) new_p = scanInteger(p, pe);
+                if (new_p != -1) {
+                    return new ParserResult(createFloat(p, new_p - 1),
+                                            new_p - 1);
+                }
+                break;
+            case RecordSchema.TYPE_STRING:
+                if (data[p] == '"') {
+                    ParserResult res = parseString(p, pe);
+                    if (res != null) checkRecordValue(slot, res.result, p);
+                    return res;
+                }
+                break;
+            }
+            ParserResult res = parseValue(p, pe);
+            if (res != null) checkRecordValue(slot, res.result, p);
+            return res;
+        }
+
+        %%{
+            machine JSON_skip_value;
+            include JSON_common;
+
+            write data;
+
+            action skip_literal {
+                matched = true;
+            }
+            action skip_nan {
+                if (parser.allowNaN) {
+                    matched = true;
+                } else {
+                    throw unexpectedToken(p - 2, pe);
+                }
+            }
+            action skip_infinity {
+                if (parser.allowNaN) {
+                    matched = true;
+                } else {
+                    throw unexpectedToken(p - 7, pe);
+                }
+            }
+            action skip_number {
+                if (pe > fpc + 9 &&
+                    absSubSequence(fpc, fpc + 9).toString().equals(JSON_MINUS_INFINITY)) {
+
+                    if (parser.allowNaN) {
+                        matched = true;
+                        fexec p + 10;
+                        fhold;
+                        fbreak;
+                    } else {
+                        throw unexpectedToken(p, pe);
+                    }
+                }
+                int new_p = scanFloat(fpc, pe);
+                if (new_p == -1) new_p = scanInteger(fpc, pe);
+                if (new_p != -1) {
+                    matched = true;
+                    fexec new_p;
+                }
+                fhold;
+                fbreak;
+            }
+            action skip_string {
+                int new_p = scanString(fpc, pe);
+                if (new_p == -1) {
+                    fhold;
+                    fbreak;
+                } else {
+                    matched = true;
+                    fexec new_p;
+                }
+            }
+            action skip_array {
+                currentNesting++;
+                int new_p = skipArray(fpc, pe);
+                currentNesting--;
+                if (new_p == -1) {
+                    fhold;
+                    fbreak;
+                } else {
+                    matched = true;
+                    fexec new_p;
+                }
+            }
+            action skip_object {
+                currentNesting++;
+                int new_p = skipObject(fpc, pe);
+                currentNesting--;
+                if (new_p == -1) {
+                    fhold;
+                    fbreak;
+                } else {
+                    matched = true;
+                    fexec new_p;
+                }
+            }
+            action exit {
+                fhold;
+                fbreak;
+            }
+
+            main := ( Vnull @skip_literal |
+                      Vfalse @skip_literal |
+                      Vtrue @skip_literal |
+                      VNaN @skip_nan |
+                      VInfinity @skip_infinity |
+                      begin_number >skip_number |
+                      begin_string >skip_string |
+                      begin_array >skip_array |
+                      begin_object >skip_object
+                    ) %*exit;
+        }%%
+
+        /**
+         * Validates a value just like {@link #parseValue}, but without
+         * building it. Returns the position after the value, or
+         * <code>-1</code> if there is no valid value there.
+         */
+        int skipValue(int p, int pe) {
+            int cs = EVIL;
+            boolean matched = false;
+
+            %% write init;
+            %% write exec;
+
+            if (cs >= JSON_skip_value_first_final && matched) {
+                return p;
+            } else {
+                return -1;
+            }
+        }
+
+        %%{
+            machine JSON_skip_array;
+            include JSON_common;
+
+            write data;
+
+            action skip_value {
+                int new_p = skipValue(fpc, pe);
+                if (new_p == -1) {
+                    fhold;
+                    fbreak;
+                } else {
+                    fexec new_p;
+                }
+            }
+
+            action exit {
+                fhold;
+                fbreak;
+            }
+
+            next_element = value_separator ignore* begin_value >skip_value;
+
+            main := begin_array
+                    ignore*
+                    ( ( begin_value >skip_value
+                        ignore* )
+                      ( ignore*
+                        next_element
+                        ignore* )* )?
+                    ignore*
+                    end_array @exit;
+        }%%
+
+        int skipArray(int p, int pe) {
+            int cs = EVIL;
+
+            checkNesting();
+
+            %% write init;
+            %% write exec;
+
+            if (cs >= JSON_skip_array_first_final) {
+                return p + 1;
+            } else {
+                throw unexpectedToken(p, pe);
+            }
+        }
+
+        %%{
+            machine JSON_skip_object;
+            include JSON_common;
+
+            write data;
+
+            action skip_value {
+                int new_p = skipValue(fpc, pe);
+                if (new_p == -1) {
+                    fhold;
+                    fbreak;
+                } else {
+                    fexec new_p;
+                }
+            }
+
+            action skip_name {
+                int new_p = scanString(fpc, pe);
+                if (new_p == -1) {
+                    fhold;
+                    fbreak;
+                } else {
+                    fexec new_p;
+                }
+            }
+
+            action exit {
+                fhold;
+                fbreak;
+            }
+
+            a_pair = ignore*
+                     begin_name >skip_name
+                     ignore* name_separator ignore*
+                     begin_value >skip_value;
+
+            main := begin_object
+                    (a_pair (ignore* value_separator a_pair)*)?
+                    ignore* end_object @exit;
+        }%%
+
+        int skipObject(int p, int pe) {
+            int cs = EVIL;
+
+            checkNesting();
+
+            %% write init;
+            %% write exec;
+
+            if (cs < JSON_skip_object_first_final) {
+                return -1;
+            }
+            return p + 1;
         }
 
         %%{
@@ -755,7 +1441,7 @@ public class Parser extends RubyObject {
             %% write exec;
 
             if (cs >= JSON_first_final && p == pe) {
-                return result;
+                return loaded(result);
             } else {
                 throw unexpectedToken(p, pe);
             }
@@ -768,7 +1454,7 @@ public class Parser extends RubyObject {
          * @param start
          * @param end
          */
-        private ByteList absSubSequence(int absStart, int absEnd) {
+        ByteList absSubSequence(int absStart, int absEnd) {
             int offset = byteList.begin();
             return (ByteList)byteList.subSequence(absStart - offset,
                                                   absEnd - offset);
@@ -778,7 +1464,7 @@ public class Parser extends RubyObject {
          * Retrieves a constant directly descended from the <code>JSON</code> module.
          * @param name The constant name
          */
-        private IRubyObject getConstant(String name) {
+        IRubyObject getConstant(String name) {
             return parser.info.jsonModule.getConstant(name);
         }
 
@@ -796,4 +1482,499 @@ public class Parser extends RubyObject {
                     getRuntime().newString(messageBegin).cat(messageEnd));
         }
     }
+
+
+    /**
+     * A parsing session driven by a hand-written recursive-descent scanner
+     * instead of the Ragel machines, selected with
+     * <code>:engine => :descent</code>.
+     *
+     * <p>It accepts and rejects exactly the same inputs as
+     * {@link ParserSession}, and builds values through the same methods;
+     * only the scanning differs. The position is kept on a field rather
+     * than being passed around in {@link ParserResult}s, and the comment
+     * alternatives are only looked at when a <code>'/'</code> shows up
+     * between tokens.
+     */
+    private static final class DescentSession extends ParserSession {
+        /** Position of the next byte to be read */
+        private int p;
+        private final int pe;
+
+        private DescentSession(Parser parser, ThreadContext context) {
+            super(parser, context);
+            this.p = byteList.begin();
+            this.pe = p + byteList.length();
+        }
+
+        @Override
+        public IRubyObject parse() {
+            IRubyObject result;
+
+            skipIgnore();
+            currentNesting = 1;
+            if (p < pe && data[p] == '{') {
+                result = descendObject();
+            } else if (p < pe && data[p] == '[') {
+                result = descendArray();
+            } else {
+                throw unexpectedToken(p, pe);
+            }
+            skipIgnore();
+
+            if (p != pe) throw unexpectedToken(p, pe);
+            return loaded(result);
+        }
+
+        /**
+         * Skips white space and comments.
+         */
+        private void skipIgnore() {
+            while (p < pe) {
+                switch (data[p]) {
+                case ' ':
+                case '\t':
+                case '\r':
+                case '\n':
+                    p++;
+                    break;
+                case '/':
+                    skipComment();
+                    break;
+                default:
+                    return;
+                }
+            }
+        }
+
+        private void skipComment() {
+            if (p + 1 < pe) {
+                if (data[p + 1] == '*') {
+                    for (int i = p + 2; i + 1 < pe; i++) {
+                        if (data[i] == '*' && data[i + 1] == '/') {
+                            p = i + 2;
+                            return;
+                        }
+                    }
+                } else if (data[p + 1] == '/') {
+                    // C++-style comments must be terminated by a newline
+                    for (int i = p + 2; i < pe; i++) {
+                        if (data[i] == '\n') {
+                            p = i + 1;
+                            return;
+                        }
+                    }
+                }
+            }
+            throw unexpectedToken(p, pe);
+        }
+
+        private void expect(char c) {
+            if (p >= pe || data[p] != c) throw unexpectedToken(p, pe);
+            p++;
+        }
+
+        /**
+         * Consumes the given keyword, raising a ParserError if it is not
+         * found at the current position.
+         */
+        private void expectKeyword(String keyword) {
+            int len = keyword.length();
+            if (p + len > pe) throw unexpectedToken(p, pe);
+            for (int i = 0; i < len; i++) {
+                if (data[p + i] != keyword.charAt(i)) {
+                    throw unexpectedToken(p, pe);
+                }
+            }
+            p += len;
+        }
+
+        private boolean atMinusInfinity() {
+            return pe > p + 9 &&
+                absSubSequence(p, p + 9).toString().equals(JSON_MINUS_INFINITY);
+        }
+
+        private IRubyObject descendValue() {
+            if (p >= pe) throw unexpectedToken(p, pe);
+            IRubyObject result;
+            switch (data[p]) {
+            case '"':
+                return descendString();
+            case '[':
+                currentNesting++;
+                result = descendArray();
+                currentNesting--;
+                return result;
+            case '{':
+                currentNesting++;
+                result = descendObject();
+                currentNesting--;
+                return result;
+            case 'n':
+                expectKeyword("null");
+                return getRuntime().getNil();
+            case 'f':
+                expectKeyword("false");
+                return getRuntime().getFalse();
+            case 't':
+                expectKeyword("true");
+                return getRuntime().getTrue();
+            case 'N':
+                expectKeyword("NaN");
+                if (!parser.allowNaN) throw unexpectedToken(p - 3, pe);
+                return getConstant(CONST_NAN);
+            case 'I':
+                expectKeyword("Infinity");
+                if (!parser.allowNaN) throw unexpectedToken(p - 8, pe);
+                return getConstant(CONST_INFINITY);
+            case '-':
+                if (atMinusInfinity()) {
+                    if (!parser.allowNaN) throw unexpectedToken(p, pe);
+                    p += 9;
+                    return getConstant(CONST_MINUS_INFINITY);
+                }
+                return descendNumber(false);
+            default:
+                if (data[p] >= '0' && data[p] <= '9') {
+                    return descendNumber(false);
+                }
+                throw unexpectedToken(p, pe);
+            }
+        }
+
+        /**
+         * Parses a number, as a Float if it has a fraction or exponent or
+         * if <code>asFloat</code> is set, as an Integer otherwise.
+         */
+        private IRubyObject descendNumber(boolean asFloat) {
+            int start = p;
+            int end = floatEnd(start);
+            if (end != -1) {
+                p = end;
+                return createFloat(start, end);
+            }
+            end = integerEnd(start);
+            if (end == -1) throw unexpectedToken(start, pe);
+            p = end;
+            return asFloat ? createFloat(start, end)
+                           : createInteger(start, end);
+        }
+
+        @Override
+        int floatEnd(int start, int pe) {
+            return floatEnd(start);
+        }
+
+        @Override
+        int integerEnd(int start, int pe) {
+            return integerEnd(start);
+        }
+
+        private static boolean isDigit(byte b) {
+            return b >= '0' && b <= '9';
+        }
+
+        /**
+         * Returns the end of the integer part of a number (the optional
+         * minus sign, followed by a zero or by a run of digits not starting
+         * with zero), or <code>-1</code> if there is none.
+         */
+        private int integerPartEnd(int i) {
+            if (i < pe && data[i] == '-') i++;
+            if (i >= pe) return -1;
+            if (data[i] == '0') return i + 1;
+            if (!isDigit(data[i])) return -1;
+            do {
+                i++;
+            } while (i < pe && isDigit(data[i]));
+            return i;
+        }
+
+        /**
+         * Returns the end of the integer starting at <code>start</code>, or
+         * <code>-1</code> if there is none. Like the <code>JSON_integer</code>
+         * machine, this requires the integer to be followed by a non-digit.
+         */
+        private int integerEnd(int start) {
+            int i = integerPartEnd(start);
+            if (i == -1 || i >= pe || isDigit(data[i])) return -1;
+            return i;
+        }
+
+        /**
+         * Returns the end of the float starting at <code>start</code>, or
+         * <code>-1</code> if there is none. Like the <code>JSON_float</code>
+         * machine, this requires the float to be followed by a character
+         * that could not continue it.
+         */
+        private int floatEnd(int start) {
+            int i = integerPartEnd(start);
+            if (i == -1 || i >= pe) return -1;
+
+            if (data[i] == '.') {
+                int fractionStart = ++i;
+                while (i < pe && isDigit(data[i])) i++;
+                if (i == fractionStart) return -1;
+                if (i < pe && (data[i] == 'e' || data[i] == 'E')) {
+                    i = exponentEnd(i);
+                }
+            } else if (data[i] == 'e' || data[i] == 'E') {
+                i = exponentEnd(i);
+            } else {
+                return -1;
+            }
+
+            if (i == -1 || i >= pe) return -1;
+            switch (data[i]) {
+            case 'e': case 'E': case '.': case '-':
+                return -1;
+            default:
+                return isDigit(data[i]) ? -1 : i;
+            }
+        }
+
+        private int exponentEnd(int i) {
+            i++; // 'e' or 'E'
+            if (i < pe && (data[i] == '+' || data[i] == '-')) i++;
+            int digitsStart = i;
+            while (i < pe && isDigit(data[i])) i++;
+            return i == digitsStart ? -1 : i;
+        }
+
+        /**
+         * Returns the position after the closing quote of the string
+         * starting at the current position, raising a ParserError if the
+         * string is not valid.
+         */
+        private int stringEnd() {
+            int i = p + 1;
+            while (i < pe) {
+                int b = data[i] & 0xff;
+                if (b == '"') return i + 1;
+                if (b < 0x20) break;
+                if (b == '\\') {
+                    if (++i >= pe) break;
+                    b = data[i] & 0xff;
+                    if (b == 'u') {
+                        if (i + 4 >= pe) break;
+                        if (!isHex(data[i + 1]) || !isHex(data[i + 2]) ||
+                            !isHex(data[i + 3]) || !isHex(data[i + 4])) {
+                            break;
+                        }
+                        i += 4;
+                    } else if (b < 0x20) {
+                        break;
+                    }
+                }
+                i++;
+            }
+            throw unexpectedToken(p, pe);
+        }
+
+        private static boolean isHex(byte b) {
+            return b >= '0' && b <= '9' || b >= 'a' && b <= 'f'
+                   || b >= 'A' && b <= 'F';
+        }
+
+        private RubyString descendString() {
+            int start = p;
+            p = stringEnd();
+            return createString(start + 1, p - 1);
+        }
+
+        private IRubyObject descendArray() {
+            checkNesting();
+            if (parser.numericArrays && parser.loadProc == null) {
+                ParserResult res = parseNumericArray(p, pe);
+                if (res != null) {
+                    p = res.p;
+                    return res.result;
+                }
+            }
+            RubyArray result = newArray();
+
+            p++; // '['
+            skipIgnore();
+            if (p < pe && data[p] == ']') {
+                p++;
+                return result;
+            }
+            while (true) {
+                result.append(loaded(descendValue()));
+                skipIgnore();
+                if (p < pe && data[p] == ',') {
+                    p++;
+                    skipIgnore();
+                } else {
+                    expect(']');
+                    return result;
+                }
+            }
+        }
+
+        private IRubyObject descendObject() {
+            checkNesting();
+            if (parser.recordSchema != null &&
+                    currentNesting == parser.recordDepth) {
+                return descendRecord();
+            }
+            RubyHash result = newObject();
+            int mark = pairTop;
+
+            p++; // '{'
+            skipIgnore();
+            if (p < pe && data[p] == '}') {
+                p++;
+                return finishObject(result, mark);
+            }
+            while (true) {
+                if (p >= pe || data[p] != '"') throw unexpectedToken(p, pe);
+                IRubyObject name = loaded(createName(descendString()));
+                skipIgnore();
+                expect(':');
+                skipIgnore();
+                storePair(result, name, loaded(descendValue()));
+                skipIgnore();
+                if (p < pe && data[p] == ',') {
+                    p++;
+                    skipIgnore();
+                } else {
+                    expect('}');
+                    return finishObject(result, mark);
+                }
+            }
+        }
+
+        private IRubyObject descendRecord() {
+            RecordSchema schema = parser.recordSchema;
+            IRubyObject[] slots = schema.newSlots(getRuntime());
+
+            p++; // '{'
+            skipIgnore();
+            if (p < pe && data[p] == '}') {
+                p++;
+                return schema.newRecord(context, slots);
+            }
+            while (true) {
+                if (p >= pe || data[p] != '"') throw unexpectedToken(p, pe);
+                int nameStart = p;
+                p = stringEnd();
+                int slot = recordSlotFor(nameStart + 1, p - 1);
+                skipIgnore();
+                expect(':');
+                skipIgnore();
+                if (slot == -1) {
+                    skipValue();
+                } else {
+                    slots[slot] = descendRecordValue(slot);
+                }
+                skipIgnore();
+                if (p < pe && data[p] == ',') {
+                    p++;
+                    skipIgnore();
+                } else {
+                    expect('}');
+                    return schema.newRecord(context, slots);
+                }
+            }
+        }
+
+        private IRubyObject descendRecordValue(int slot) {
+            int start = p;
+            IRubyObject value = null;
+            if (p < pe) {
+                switch (parser.recordSchema.typeOf(slot)) {
+                case RecordSchema.TYPE_INTEGER:
+                case RecordSchema.TYPE_FLOAT:
+                    if ((data[p] == '-' || isDigit(data[p])) &&
+                            !atMinusInfinity()) {
+                        value = descendNumber(parser.recordSchema.typeOf(slot)
+                                              == RecordSchema.TYPE_FLOAT);
+                    }
+                    break;
+                case RecordSchema.TYPE_STRING:
+                    if (data[p] == '"') value = descendString();
+                    break;
+                }
+            }
+            if (value == null) value = loaded(descendValue());
+            return checkRecordValue(slot, value, start);
+        }
+
+        /**
+         * Validates a value just like {@link #descendValue}, but without
+         * building it.
+         */
+        private void skipValue() {
+            if (p >= pe) throw unexpectedToken(p, pe);
+            switch (data[p]) {
+            case '"':
+                p = stringEnd();
+                return;
+            case '[':
+                currentNesting++;
+                skipContainer(']');
+                currentNesting--;
+                return;
+            case '{':
+                currentNesting++;
+                skipContainer('}');
+                currentNesting--;
+                return;
+            case '-':
+                if (atMinusInfinity()) {
+                    if (!parser.allowNaN) throw unexpectedToken(p, pe);
+                    p += 9;
+                    return;
+                }
+                break;
+            case 'n':
+            case 'f':
+            case 't':
+            case 'N':
+            case 'I':
+                descendValue();
+                return;
+            default:
+                if (!isDigit(data[p])) throw unexpectedToken(p, pe);
+            }
+            int end = floatEnd(p);
+            if (end == -1) end = integerEnd(p);
+            if (end == -1) throw unexpectedToken(p, pe);
+            p = end;
+        }
+
+        /**
+         * Skips an array (if <code>close</code> is <code>']'</code>) or an
+         * object (if it is <code>'}'</code>).
+         */
+        private void skipContainer(char close) {
+            checkNesting();
+
+            p++; // '[' or '{'
+            skipIgnore();
+            if (p < pe && data[p] == close) {
+                p++;
+                return;
+            }
+            while (true) {
+                if (close == '}') {
+                    if (p >= pe || data[p] != '"') throw unexpectedToken(p, pe);
+                    p = stringEnd();
+                    skipIgnore();
+                    expect(':');
+                    skipIgnore();
+                }
+                skipValue();
+                skipIgnore();
+                if (p < pe && data[p] == ',') {
+                    p++;
+                    skipIgnore();
+                } else {
+                    expect(close);
+                    return;
+                }
+            }
+        }
+    }
 }
@@ -11,11 +11,14 @@
 import org.jruby.Ruby;
 import org.jruby.RubyClass;
 import org.jruby.RubyModule;
+import org.jruby.runtime.ObjectAllocator;
 import org.jruby.runtime.load.BasicLibraryService;
 
 /**
  * The service invoked by JRuby's {@link org.jruby.runtime.load.LoadService LoadService}.
- * Defines the <code>JSON::Ext::Parser</code> class.
+ * Defines the <code>JSON::Ext::Parser</code>,
+ * <code>JSON::Ext::CompactHash</code> and
+ * <code>JSON::Ext::NumericArray</code> classes.
  * @author mernen
  */
 public class ParserService implements BasicLibraryService {
@@ -29,6 +32,18 @@ public boolean basicLoad(Ruby runtime) throws IOException {
             jsonExtModule.defineClassUnder("Parser", runtime.getObject(),
                                            Parser.ALLOCATOR);
         parserClass.defineAnnotatedMethods(Parser.class);
+
+        info.compactHashClass =
+            jsonExtModule.defineClassUnder("CompactHash", runtime.getObject(),
+                                           ObjectAllocator.NOT_ALLOCATABLE_ALLOCATOR);
+        info.compactHashClass.includeModule(runtime.getEnumerable());
+        info.compactHashClass.defineAnnotatedMethods(CompactHash.class);
+
+        info.numericArrayClass =
+            jsonExtModule.defineClassUnder("NumericArray", runtime.getObject(),
+                                           ObjectAllocator.NOT_ALLOCATABLE_ALLOCATOR);
+        info.numericArrayClass.includeModule(runtime.getEnumerable());
+        info.numericArrayClass.defineAnnotatedMethods(NumericArray.class);
         return true;
     }
 }
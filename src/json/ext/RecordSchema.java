@@ -0,0 +1,170 @@
+/*
+ * This code is copyrighted work by Daniel Luz <dev at mernen dot com>.
+ *
+ * Distributed under the Ruby and GPLv2 licenses; see COPYING and GPL files
+ * for details.
+ */
+package json.ext;
+
+import org.jruby.Ruby;
+import org.jruby.RubyArray;
+import org.jruby.RubyClass;
+import org.jruby.RubyFloat;
+import org.jruby.RubyHash;
+import org.jruby.RubyInteger;
+import org.jruby.RubyString;
+import org.jruby.runtime.Block;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+import org.jruby.util.ByteList;
+
+/**
+ * A description of a fixed-slot record (a <code>Struct</code> subclass)
+ * that the parser fills directly from JSON objects.
+ *
+ * <p>Each member of the record class gets a slot, optionally restricted to
+ * a declared type (<code>Integer</code>, <code>Float</code> or
+ * <code>String</code>) so that matching values can be built straight from
+ * the source bytes, and other values are rejected. Keys that do not name a
+ * member are skipped.
+ */
+final class RecordSchema {
+    static final int TYPE_ANY = 0;
+    static final int TYPE_INTEGER = 1;
+    static final int TYPE_FLOAT = 2;
+    static final int TYPE_STRING = 3;
+
+    private final RubyClass recordClass;
+    /** The member names, as raw UTF-8 bytes */
+    private final ByteList[] names;
+    private final int[] types;
+
+    private RecordSchema(RubyClass recordClass, ByteList[] names, int[] types) {
+        this.recordClass = recordClass;
+        this.names = names;
+        this.types = types;
+    }
+
+    /**
+     * Builds a schema for the given <code>Struct</code> subclass.
+     * @param vClass The record class
+     * @param vTypes A {@link RubyHash Hash} mapping member names to their
+     *               declared types, or <code>null</code>
+     * @throws RaiseException <code>TypeError</code> if <code>vClass</code> is
+     *                        not a Struct or if an unsupported type is
+     *                        declared; <code>ArgumentError</code> if a type is
+     *                        declared for an unknown member
+     */
+    static RecordSchema newSchema(ThreadContext context, IRubyObject vClass,
+                                  IRubyObject vTypes) {
+        Ruby runtime = context.getRuntime();
+        if (!(vClass instanceof RubyClass) ||
+                !((RubyClass)vClass).hasModuleInHierarchy(runtime.getStructClass())) {
+            throw runtime.newTypeError("record_class option must be a "
+                                       + "subclass of Struct");
+        }
+        RubyClass recordClass = (RubyClass)vClass;
+
+        RubyArray members =
+            Utils.ensureArray(recordClass.callMethod(context, "members"));
+        int size = members.getLength();
+        ByteList[] names = new ByteList[size];
+        for (int i = 0; i < size; i++) {
+            names[i] = members.eltInternal(i).asString().getByteList();
+        }
+
+        int[] types = new int[size];
+        if (vTypes != null && !vTypes.isNil()) {
+            RubyHash typesHash = Utils.ensureHash(vTypes);
+            RubyArray keys = typesHash.keys();
+            for (int i = 0, t = keys.getLength(); i < t; i++) {
+                IRubyObject key = keys.eltInternal(i);
+                ByteList name = key.asString().getByteList();
+                int slot = indexOf(names, name.unsafeBytes(), name.begin(),
+                                   name.length());
+                if (slot == -1) {
+                    throw runtime.newArgumentError("unknown record member "
+                                                   + name);
+                }
+                types[slot] = typeFor(runtime, typesHash.op_aref(context, key));
+            }
+        }
+        return new RecordSchema(recordClass, names, types);
+    }
+
+    private static int typeFor(Ruby runtime, IRubyObject type) {
+        if (type.isNil() || type == runtime.getObject()) return TYPE_ANY;
+        if (type == runtime.getInteger()) return TYPE_INTEGER;
+        if (type == runtime.getFloat())   return TYPE_FLOAT;
+        if (type == runtime.getString())  return TYPE_STRING;
+        throw runtime.newTypeError("unsupported record member type " + type);
+    }
+
+    /**
+     * Returns the slot for the member whose name is stored in the given
+     * bytes, or <code>-1</code> if the name is not known.
+     */
+    int slotFor(byte[] bytes, int start, int length) {
+        return indexOf(names, bytes, start, length);
+    }
+
+    private static int indexOf(ByteList[] names, byte[] bytes, int start,
+                               int length) {
+        for (int slot = 0; slot < names.length; slot++) {
+            ByteList name = names[slot];
+            if (name.length() != length) continue;
+            byte[] nameBytes = name.unsafeBytes();
+            int nameBegin = name.begin();
+            int i = 0;
+            while (i < length && nameBytes[nameBegin + i] == bytes[start + i]) {
+                i++;
+            }
+            if (i == length) return slot;
+        }
+        return -1;
+    }
+
+    int typeOf(int slot) {
+        return types[slot];
+    }
+
+    /**
+     * Returns whether the given value may fill the given slot: it must be
+     * <code>nil</code> or of the slot's declared type, if any.
+     */
+    boolean accepts(int slot, IRubyObject value) {
+        switch (types[slot]) {
+        case TYPE_INTEGER:
+            return value instanceof RubyInteger || value.isNil();
+        case TYPE_FLOAT:
+            return value instanceof RubyFloat || value.isNil();
+        case TYPE_STRING:
+            return value instanceof RubyString || value.isNil();
+        default:
+            return true;
+        }
+    }
+
+    /**
+     * Describes what the given slot expects, for error messages.
+     */
+    String describe(int slot) {
+        String type = types[slot] == TYPE_INTEGER ? "Integer"
+                    : types[slot] == TYPE_FLOAT   ? "Float" : "String";
+        return type + " for member " + names[slot];
+    }
+
+    /**
+     * Allocates the slots for a new record, all set to <code>nil</code>.
+     */
+    IRubyObject[] newSlots(Ruby runtime) {
+        IRubyObject[] slots = new IRubyObject[names.length];
+        IRubyObject nil = runtime.getNil();
+        for (int i = 0; i < slots.length; i++) slots[i] = nil;
+        return slots;
+    }
+
+    IRubyObject newRecord(ThreadContext context, IRubyObject[] slots) {
+        return recordClass.newInstance(context, slots, Block.NULL_BLOCK);
+    }
+}
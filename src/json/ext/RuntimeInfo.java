@@ -10,6 +10,12 @@
 import java.util.HashMap;
 import java.util.Map;
 import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.jruby.Finalizable;
 import org.jruby.Ruby;
 import org.jruby.RubyClass;
 import org.jruby.RubyEncoding;
@@ -33,8 +39,43 @@ final class RuntimeInfo {
     RubyModule stringExtendModule;
     /** JSON::Ext::Generator::State */
     RubyClass generatorStateClass;
+    /** JSON::Ext::CompactHash */
+    RubyClass compactHashClass;
+    /** JSON::Ext::NumericArray */
+    RubyClass numericArrayClass;
     /** JSON::SAFE_STATE_PROTOTYPE */
     GeneratorState safeStatePrototype;
+    /**
+     * The generator handlers chosen for subclasses of core classes
+     * (see <code>Generator.getSubclassHandler</code>)
+     */
+    final Map<RubyClass, Generator.SubclassHandler> subclassHandlers =
+        new WeakHashMap<RubyClass, Generator.SubclassHandler>();
+    /**
+     * The escaped forms of recently generated object keys, by Symbol or by
+     * String contents (see <code>Generator.appendKey</code>)
+     */
+    final Map<Object, byte[]> keyCache =
+        new ConcurrentHashMap<Object, byte[]>();
+    /** Like {@link #keyCache}, for <code>ascii_only</code> generation */
+    final Map<Object, byte[]> asciiOnlyKeyCache =
+        new ConcurrentHashMap<Object, byte[]>();
+    /**
+     * The serializers registered for classes (see
+     * <code>Generator.register_serializer</code>)
+     */
+    final Map<RubyClass, Generator.ObjectSerializer> serializers =
+        new ConcurrentHashMap<RubyClass, Generator.ObjectSerializer>();
+
+    /**
+     * The generated JSON of deeply frozen objects, for states with the
+     * <code>:frozen_cache</code> option, created on first use
+     */
+    private FrozenCache frozenCache;
+    /** The threads for parallel generation, started on first use */
+    private ExecutorService generatorPool;
+    /** Shuts {@link #generatorPool} down with the runtime */
+    private Finalizable generatorPoolFinalizer;
 
     final RubyEncoding utf8;
     final RubyEncoding ascii8bit;
@@ -106,6 +147,52 @@ public RubyEncoding getEncoding(ThreadContext context, String name) {
         }
     }
 
+    synchronized FrozenCache getFrozenCache() {
+        if (frozenCache == null) frozenCache = new FrozenCache();
+        return frozenCache;
+    }
+
+    /**
+     * Returns the thread pool for generating large containers in parallel
+     * (see <code>Generator.generateInParallel</code>). It has a daemon
+     * thread per processor, however many threads generate at once; the
+     * pool is shut down along with the given runtime.
+     */
+    synchronized ExecutorService getGeneratorPool(Ruby runtime) {
+        if (generatorPool == null) {
+            ThreadFactory threads = new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                public Thread newThread(Runnable task) {
+                    Thread thread = new Thread(task,
+                            "json-generator-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            };
+            generatorPool = Executors.newFixedThreadPool(
+                    Runtime.getRuntime().availableProcessors(), threads);
+            // the runtime only holds its finalizers weakly
+            generatorPoolFinalizer = new Finalizable() {
+                // Finalizable's method happens to share its name with the
+                // deprecated Object#finalize, which it is not meant to be
+                @SuppressWarnings("deprecation")
+                public void finalize() {
+                    shutdownGeneratorPool();
+                }
+            };
+            runtime.addInternalFinalizer(generatorPoolFinalizer);
+        }
+        return generatorPool;
+    }
+
+    private synchronized void shutdownGeneratorPool() {
+        if (generatorPool != null) {
+            generatorPool.shutdown();
+            generatorPool = null;
+        }
+    }
+
     public GeneratorState getSafeStatePrototype(ThreadContext context) {
         if (safeStatePrototype == null) {
             IRubyObject value = jsonModule.getConstant("SAFE_STATE_PROTOTYPE");
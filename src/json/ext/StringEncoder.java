@@ -6,8 +6,10 @@
 
 /**
  * An encoder that reads from the given source and outputs its representation
- * to another ByteList. The source string is fully checked for UTF-8 validity,
- * and throws a GeneratorError if any problem is found.
+ * to another ByteList. Unless the source is already known to be valid, it is
+ * fully checked for UTF-8 validity, and a GeneratorError is thrown if any
+ * problem is found. ISO-8859-1 and UTF-16 sources can be transcoded on the
+ * way.
  */
 final class StringEncoder extends ByteListTranscoder {
     private final boolean asciiOnly;
@@ -32,50 +34,183 @@ final class StringEncoder extends ByteListTranscoder {
             new byte[] {'0', '1', '2', '3', '4', '5', '6', '7',
                         '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'};
 
+    /**
+     * How each byte of the source is to be written: <code>0</code> if as
+     * is; the character to follow a backslash, for short escapes;
+     * <code>'u'</code> for other control characters, written as Unicode
+     * escapes; or <code>1</code> for the bytes of multi-byte characters,
+     * which need to be decoded.
+     */
+    private static final byte[] ESCAPE_TABLE = new byte[256];
+    /**
+     * Like {@link #ESCAPE_TABLE}, for sources already known to be valid
+     * UTF-8: multi-byte characters are copied as they are.
+     */
+    private static final byte[] VALID_ESCAPE_TABLE;
+    static {
+        for (int i = 0; i < 0x20; i++) ESCAPE_TABLE[i] = 'u';
+        ESCAPE_TABLE['"']  = '"';
+        ESCAPE_TABLE['\\'] = '\\';
+        ESCAPE_TABLE['\n'] = 'n';
+        ESCAPE_TABLE['\r'] = 'r';
+        ESCAPE_TABLE['\t'] = 't';
+        ESCAPE_TABLE['\f'] = 'f';
+        ESCAPE_TABLE['\b'] = 'b';
+        VALID_ESCAPE_TABLE = ESCAPE_TABLE.clone();
+        for (int i = 0x80; i < 0x100; i++) ESCAPE_TABLE[i] = 1;
+    }
+
     StringEncoder(ThreadContext context, boolean asciiOnly) {
         super(context);
         this.asciiOnly = asciiOnly;
     }
 
-    void encode(ByteList src, ByteList out) {
+    /**
+     * Writes the given UTF-8 source out as a quoted JSON string, checking
+     * its validity.
+     * @return whether the source was made of ASCII characters only
+     */
+    boolean encode(ByteList src, ByteList out) {
+        return encode(src, out, ESCAPE_TABLE);
+    }
+
+    /**
+     * Writes the given source, which must be known to be valid UTF-8, out
+     * as a quoted JSON string.
+     */
+    void encodeValid(ByteList src, ByteList out) {
+        // in ASCII-only mode, multi-byte characters must still be decoded
+        // for escaping
+        encode(src, out, asciiOnly ? ESCAPE_TABLE : VALID_ESCAPE_TABLE);
+    }
+
+    private boolean encode(ByteList src, ByteList out, byte[] table) {
         init(src, out);
         append('"');
+        byte[] bytes = src.unsafeBytes();
+        int offset = src.begin();
+        boolean ascii = true;
         while (hasNext()) {
-            handleChar(readUtf8Char());
+            int b = bytes[offset + pos] & 0xff;
+            byte escape = table[b];
+            if (escape == 0) {
+                // most strings are mostly made of these; find the end of
+                // the run and leave it to be copied in one go
+                charStart = pos;
+                quoteStart();
+                do {
+                    pos++;
+                } while (pos < srcEnd
+                         && table[bytes[offset + pos] & 0xff] == 0);
+            } else if (b < 0x80) {
+                charStart = pos++;
+                if (escape == 'u') {
+                    quoteStop(charStart);
+                    escapeUtf8Char(b);
+                } else {
+                    escapeChar((char)escape);
+                }
+            } else {
+                ascii = false;
+                handleMultiByteChar(readUtf8Char());
+            }
         }
         quoteStop(pos);
         append('"');
+        return ascii;
     }
 
-    private void handleChar(int c) {
-        switch (c) {
-        case '"':
-        case '\\':
-            escapeChar((char)c);
-            break;
-        case '\n':
-            escapeChar('n');
-            break;
-        case '\r':
-            escapeChar('r');
-            break;
-        case '\t':
-            escapeChar('t');
-            break;
-        case '\f':
-            escapeChar('f');
-            break;
-        case '\b':
-            escapeChar('b');
-            break;
-        default:
-            if (c >= 0x20 && c <= 0x7f ||
-                    (c >= 0x80 && !asciiOnly)) {
-                quoteStart();
-            } else {
-                quoteStop(charStart);
+    /**
+     * Writes the given ISO-8859-1 source out as a quoted JSON string,
+     * transcoding it on the way.
+     */
+    void encodeLatin1(ByteList src, ByteList out) {
+        init(src, out);
+        append('"');
+        byte[] bytes = src.unsafeBytes();
+        for (int i = src.begin(), end = i + src.length(); i < end; i++) {
+            appendChar(bytes[i] & 0xff);
+        }
+        append('"');
+    }
+
+    /**
+     * Writes the given UTF-16 source out as a quoted JSON string,
+     * transcoding it on the way. If the source turns out not to be valid
+     * UTF-16, the output is left as it was.
+     * @return <code>false</code> if the source was not valid UTF-16
+     */
+    boolean encodeUtf16(ByteList src, boolean bigEndian, ByteList out) {
+        int length = src.length();
+        if (length % 2 != 0) return false;
+        int outStart = out.length();
+        init(src, out);
+        append('"');
+        byte[] bytes = src.unsafeBytes();
+        int offset = src.begin();
+        for (int i = 0; i < length; i += 2) {
+            char c = readCodeUnit(bytes, offset + i, bigEndian);
+            if (Character.isHighSurrogate(c) && i + 2 < length) {
+                char low = readCodeUnit(bytes, offset + i + 2, bigEndian);
+                if (Character.isLowSurrogate(low)) {
+                    appendChar(Character.toCodePoint(c, low));
+                    i += 2;
+                    continue;
+                }
+            }
+            if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                // unpaired surrogate
+                out.setRealSize(outStart);
+                return false;
+            }
+            appendChar(c);
+        }
+        append('"');
+        return true;
+    }
+
+    private static char readCodeUnit(byte[] bytes, int i, boolean bigEndian) {
+        int hi = bigEndian ? bytes[i] : bytes[i + 1];
+        int lo = bigEndian ? bytes[i + 1] : bytes[i];
+        return (char)(((hi & 0xff) << 8) | (lo & 0xff));
+    }
+
+    /**
+     * Writes a single character from a non-UTF-8 source.
+     */
+    private void appendChar(int c) {
+        if (c < 0x80) {
+            byte escape = ESCAPE_TABLE[c];
+            if (escape == 0) {
+                append(c);
+            } else if (escape == 'u') {
                 escapeUtf8Char(c);
+            } else {
+                escapeChar((char)escape);
             }
+        } else if (asciiOnly) {
+            escapeUtf8Char(c);
+        } else if (c < 0x800) {
+            append(0xc0 | (c >>> 6));
+            append(0x80 | (c & 0x3f));
+        } else if (c < 0x10000) {
+            append(0xe0 | (c >>> 12));
+            append(0x80 | ((c >>> 6) & 0x3f));
+            append(0x80 | (c & 0x3f));
+        } else {
+            append(0xf0 | (c >>> 18));
+            append(0x80 | ((c >>> 12) & 0x3f));
+            append(0x80 | ((c >>> 6) & 0x3f));
+            append(0x80 | (c & 0x3f));
+        }
+    }
+
+    private void handleMultiByteChar(int c) {
+        if (asciiOnly) {
+            quoteStop(charStart);
+            escapeUtf8Char(c);
+        } else {
+            quoteStart();
         }
     }
 
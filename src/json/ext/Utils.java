@@ -6,6 +6,8 @@
  */
 package json.ext;
 
+import java.util.Arrays;
+
 import org.jruby.Ruby;
 import org.jruby.RubyArray;
 import org.jruby.RubyClass;
@@ -86,4 +88,99 @@ static byte[] repeat(byte[] a, int begin, int length, int n) {
         }
         return result;
     }
+
+    private static final byte[] BASE64_DIGITS = ByteList.plain(
+        "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/");
+    /** The value of each Base64 digit, or -1 for other bytes */
+    private static final byte[] BASE64_VALUES = new byte[256];
+    static {
+        Arrays.fill(BASE64_VALUES, (byte)-1);
+        for (int i = 0; i < BASE64_DIGITS.length; i++) {
+            BASE64_VALUES[BASE64_DIGITS[i]] = (byte)i;
+        }
+    }
+
+    /**
+     * Encodes the given bytes as Base64 (RFC 4648, padded, without line
+     * breaks).
+     */
+    static ByteList encodeBase64(ByteList src) {
+        byte[] bytes = src.unsafeBytes();
+        int p = src.begin();
+        int end = p + src.length();
+        byte[] out = new byte[(src.length() + 2) / 3 * 4];
+        int q = 0;
+        for (; end - p >= 3; p += 3) {
+            int bits = (bytes[p] & 0xff) << 16 | (bytes[p + 1] & 0xff) << 8
+                       | bytes[p + 2] & 0xff;
+            out[q++] = BASE64_DIGITS[bits >>> 18];
+            out[q++] = BASE64_DIGITS[bits >>> 12 & 0x3f];
+            out[q++] = BASE64_DIGITS[bits >>> 6 & 0x3f];
+            out[q++] = BASE64_DIGITS[bits & 0x3f];
+        }
+        if (p < end) {
+            int bits = (bytes[p] & 0xff) << 16;
+            if (end - p == 2) bits |= (bytes[p + 1] & 0xff) << 8;
+            out[q++] = BASE64_DIGITS[bits >>> 18];
+            out[q++] = BASE64_DIGITS[bits >>> 12 & 0x3f];
+            out[q++] = end - p == 2 ? BASE64_DIGITS[bits >>> 6 & 0x3f]
+                                    : (byte)'=';
+            out[q++] = '=';
+        }
+        return new ByteList(out, false);
+    }
+
+    /**
+     * Decodes Base64 data, as produced by {@link #encodeBase64}. Line
+     * breaks and other white space are skipped, and padding is optional.
+     * @return The decoded bytes, or <code>null</code> if the data is not
+     *         valid Base64
+     */
+    static ByteList decodeBase64(ByteList src) {
+        byte[] bytes = src.unsafeBytes();
+        int p = src.begin();
+        int end = p + src.length();
+        byte[] out = new byte[src.length() / 4 * 3 + 2];
+        int q = 0;
+        int bits = 0;
+        int digits = 0;
+        for (; p < end; p++) {
+            int b = bytes[p] & 0xff;
+            int value = BASE64_VALUES[b];
+            if (value >= 0) {
+                bits = bits << 6 | value;
+                if (++digits == 4) {
+                    out[q++] = (byte)(bits >>> 16);
+                    out[q++] = (byte)(bits >>> 8);
+                    out[q++] = (byte)bits;
+                    bits = digits = 0;
+                }
+            } else if (b == '=') {
+                break;
+            } else if (b != ' ' && b != '\t' && b != '\n' && b != '\r') {
+                return null;
+            }
+        }
+        // only padding (and white space) may follow the digits
+        for (; p < end; p++) {
+            int b = bytes[p];
+            if (b != '=' && b != ' ' && b != '\t' && b != '\n' && b != '\r') {
+                return null;
+            }
+        }
+        switch (digits) {
+        case 0:
+            break;
+        case 2:
+            out[q++] = (byte)(bits >>> 4);
+            break;
+        case 3:
+            out[q++] = (byte)(bits >>> 10);
+            out[q++] = (byte)(bits >>> 2);
+            break;
+        default:
+            return null;
+        }
+        return new ByteList(out, 0, q, false);
+    }
 }
@@ -0,0 +1,341 @@
+/*
+ * This code is copyrighted work by Daniel Luz <dev at mernen dot com>.
+ *
+ * Distributed under the Ruby and GPLv2 licenses; see COPYING and GPL files
+ * for details.
+ */
+package json.ext;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jruby.Ruby;
+import org.jruby.RubyClass;
+import org.jruby.RubyObject;
+import org.jruby.RubyString;
+import org.jruby.anno.JRubyMethod;
+import org.jruby.runtime.ObjectAllocator;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.Visibility;
+import org.jruby.runtime.builtin.IRubyObject;
+import org.jruby.util.ByteList;
+
+/**
+ * The <code>JSON::Ext::Writer</code> class.
+ *
+ * <p>Writes a JSON document piece by piece, as it is pushed by the caller,
+ * straight into a String or to an IO, without building the Hashes and
+ * Arrays it represents:
+ * <pre>
+ * w = JSON::Ext::Writer.new(io)
+ * w.start_array
+ * cursor.each { |row| w.start_object.key('id').value(row.id).end_object }
+ * w.end_array.flush
+ * </pre>
+ *
+ * <p>The output is laid out as the given state (or options) say, exactly
+ * as the generator would lay out the equivalent objects. Values passed to
+ * {@link #value} are generated as by the generator, at the current depth.
+ * Out of order calls (such as a value where a key is expected) raise a
+ * <code>JSON::GeneratorError</code>.
+ *
+ * <p>Like the rest of the generator, a writer must only be used from one
+ * thread at a time.
+ */
+public class Writer extends RubyObject {
+    /** The String written into, if writing into one */
+    private RubyString targetString;
+    /** The IO written to, otherwise */
+    private GeneratorSink sink;
+    /** The output not yet written to {@link #sink} */
+    private ByteList buffer;
+
+    private Generator.Session session;
+    private GeneratorState.Layout layout;
+    /** The arrays and objects started and not yet ended */
+    private final List<Level> stack = new ArrayList<Level>();
+    /** Whether a key was written, and its value is expected next */
+    private boolean expectingValue = false;
+    /** Whether the top-level value was written entirely */
+    private boolean complete = false;
+
+    /**
+     * An array or object being written.
+     */
+    private static final class Level {
+        final boolean object;
+        /** The indentation of the elements */
+        final byte[] indent;
+        /** The indentation of the closing bracket */
+        final byte[] closingIndent;
+        /** The number of elements written so far */
+        int count = 0;
+
+        Level(boolean object, GeneratorState.Layout layout, int depth) {
+            this.object = object;
+            this.indent = layout.indent(depth);
+            this.closingIndent = layout.indent(depth - 1);
+        }
+    }
+
+    static final ObjectAllocator ALLOCATOR = new ObjectAllocator() {
+        public IRubyObject allocate(Ruby runtime, RubyClass klazz) {
+            return new Writer(runtime, klazz);
+        }
+    };
+
+    public Writer(Ruby runtime, RubyClass metaClass) {
+        super(runtime, metaClass);
+    }
+
+    /**
+     * <code>Writer#initialize(target, state = nil)</code>
+     *
+     * <p>Creates a writer appending to <code>target</code>, which may be a
+     * String, or anything accepted by <code>State#generate_to</code> (an
+     * IO, a <code>java.io.OutputStream</code>, or any object responding to
+     * <code>write</code>). Output to an IO is written in large chunks, so
+     * {@link #flush} must be called once done. <code>state</code> is a
+     * <code>State</code> or a Hash of options, as for
+     * <code>JSON.generate</code>.
+     */
+    @JRubyMethod(required=1, optional=1, visibility=Visibility.PRIVATE)
+    public IRubyObject initialize(ThreadContext context, IRubyObject[] args) {
+        GeneratorState state = GeneratorState.fromState(context,
+                args.length > 1 ? args[1] : null);
+        session = new Generator.Session(context, state);
+        layout = session.getLayout();
+        if (args[0] instanceof RubyString) {
+            targetString = (RubyString)args[0];
+        } else {
+            sink = GeneratorSink.forTarget(context, args[0]);
+            buffer = new ByteList(sink.getChunkSize() * 2);
+        }
+        return this;
+    }
+
+    @JRubyMethod
+    public IRubyObject start_array(ThreadContext context) {
+        return start(context, false);
+    }
+
+    @JRubyMethod
+    public IRubyObject start_object(ThreadContext context) {
+        return start(context, true);
+    }
+
+    @JRubyMethod
+    public IRubyObject end_array(ThreadContext context) {
+        return end(context, false);
+    }
+
+    @JRubyMethod
+    public IRubyObject end_object(ThreadContext context) {
+        return end(context, true);
+    }
+
+    /**
+     * <code>Writer#key(name)</code>
+     *
+     * <p>Writes the key of the next member of the current object. Its
+     * value must be written next, by any of {@link #value}, {@link #raw},
+     * {@link #start_array} or {@link #start_object}.
+     */
+    @JRubyMethod
+    public IRubyObject key(ThreadContext context, IRubyObject name) {
+        Level level = currentLevel();
+        if (level == null || !level.object || expectingValue) {
+            throw Utils.newException(context, Utils.M_GENERATOR_ERROR,
+                    "key written outside of an object, or without a value");
+        }
+        ByteList out = beginWrite();
+        int start = out.length();
+        boolean done = false;
+        try {
+            if (level.count != 0) {
+                if (layout.compact) {
+                    out.append((byte)',');
+                } else {
+                    out.append(layout.objectDelim);
+                }
+            }
+            if (layout.objectNl.length != 0) out.append(level.indent);
+            Generator.appendKey(session, name, out);
+            out.append(layout.colon);
+            done = true;
+        } finally {
+            if (!done) out.setRealSize(start);
+        }
+        level.count++;
+        expectingValue = true;
+        endWrite();
+        return this;
+    }
+
+    /**
+     * <code>Writer#value(obj)</code>
+     *
+     * <p>Writes the JSON form of <code>obj</code>, as the next element of
+     * the current array, the value of the current object key, or the whole
+     * document.
+     */
+    @JRubyMethod
+    public IRubyObject value(ThreadContext context, IRubyObject obj) {
+        Level level = checkValue(context);
+        ByteList out = beginWrite();
+        int start = out.length();
+        boolean done = false;
+        try {
+            writeSeparator(level, out);
+            Generator.generateValue(session, obj, out);
+            done = true;
+        } finally {
+            if (!done) out.setRealSize(start);
+        }
+        valueWritten(level);
+        endWrite();
+        return this;
+    }
+
+    /**
+     * <code>Writer#raw(json)</code>
+     *
+     * <p>Writes the given JSON text (a String or a
+     * <code>JSON::Ext::Fragment</code>) as is, wherever {@link #value}
+     * would write a value. The text is not checked.
+     */
+    @JRubyMethod
+    public IRubyObject raw(ThreadContext context, IRubyObject json) {
+        ByteList bytes = Fragment.jsonBytes(context, json);
+        Level level = checkValue(context);
+        ByteList out = beginWrite();
+        writeSeparator(level, out);
+        out.append(bytes);
+        valueWritten(level);
+        endWrite();
+        return this;
+    }
+
+    /**
+     * <code>Writer#flush</code>
+     *
+     * <p>Writes out any output still buffered for the IO. Output into a
+     * String is never buffered.
+     */
+    @JRubyMethod
+    public IRubyObject flush(ThreadContext context) {
+        if (sink != null && buffer.length() != 0) {
+            sink.write(context, buffer);
+            buffer.setRealSize(0);
+        }
+        return this;
+    }
+
+    /**
+     * <code>Writer#complete?</code>
+     *
+     * <p>Returns whether a whole JSON document was written.
+     */
+    @JRubyMethod(name="complete?")
+    public IRubyObject complete_p(ThreadContext context) {
+        return context.getRuntime().newBoolean(complete);
+    }
+
+    private IRubyObject start(ThreadContext context, boolean object) {
+        Level level = checkValue(context);
+        int depth = session.increaseDepth();
+        ByteList out = beginWrite();
+        writeSeparator(level, out);
+        if (object) {
+            out.append((byte)'{');
+            if (!layout.compact) out.append(layout.objectNl);
+        } else {
+            out.append((byte)'[');
+            if (!layout.compact) out.append(layout.arrayNl);
+        }
+        // the new container is the value the parent was expecting; it is
+        // counted as written once ended
+        expectingValue = false;
+        stack.add(new Level(object, layout, depth));
+        endWrite();
+        return this;
+    }
+
+    private IRubyObject end(ThreadContext context, boolean object) {
+        Level level = currentLevel();
+        if (level == null || level.object != object || expectingValue) {
+            throw Utils.newException(context, Utils.M_GENERATOR_ERROR,
+                    object ? "no object to end" : "no array to end");
+        }
+        stack.remove(stack.size() - 1);
+        session.decreaseDepth();
+        ByteList out = beginWrite();
+        byte[] nl = object ? layout.objectNl : layout.arrayNl;
+        if (nl.length != 0) {
+            out.append(nl);
+            out.append(level.closingIndent);
+        }
+        out.append((byte)(object ? '}' : ']'));
+        valueWritten(currentLevel());
+        endWrite();
+        return this;
+    }
+
+    private Level currentLevel() {
+        return stack.isEmpty() ? null : stack.get(stack.size() - 1);
+    }
+
+    /**
+     * Checks that a value may be written now, and returns the level it
+     * belongs to (<code>null</code> at the top level).
+     */
+    private Level checkValue(ThreadContext context) {
+        Level level = currentLevel();
+        if (level == null ? complete : level.object && !expectingValue) {
+            throw Utils.newException(context, Utils.M_GENERATOR_ERROR,
+                    level == null ? "JSON document already complete"
+                                  : "object value written without a key");
+        }
+        return level;
+    }
+
+    /**
+     * Writes what comes before a value: the delimiter and indentation of
+     * an array element.
+     */
+    private void writeSeparator(Level level, ByteList out) {
+        if (level == null || level.object) return;
+        if (layout.compact) {
+            if (level.count != 0) out.append((byte)',');
+        } else {
+            if (level.count != 0) out.append(layout.arrayDelim);
+            out.append(level.indent);
+        }
+    }
+
+    private void valueWritten(Level level) {
+        if (level == null) {
+            complete = true;
+        } else if (level.object) {
+            expectingValue = false;
+        } else {
+            level.count++;
+        }
+    }
+
+    private ByteList beginWrite() {
+        if (targetString == null) return buffer;
+        targetString.modify();
+        return targetString.getByteList();
+    }
+
+    private void endWrite() {
+        if (targetString != null) {
+            targetString.clearCodeRange();
+            session.infect(targetString);
+        } else if (buffer.length() >= sink.getChunkSize()) {
+            sink.write(session.getContext(), buffer);
+            buffer.setRealSize(0);
+        }
+    }
+}
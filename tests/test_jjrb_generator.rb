@@ -0,0 +1,498 @@
+#!/usr/bin/env ruby
+# -*- coding: utf-8 -*-
+
+require 'test/unit'
+require 'java'
+require 'json/ext'
+
+class TestJjrbGenerator < Test::Unit::TestCase
+  # Tests for generator features that are specific to JSON-JRuby.
+
+  include JSON
+
+  class ChunkRecorder
+    attr_reader :chunks
+
+    def initialize
+      @chunks = []
+    end
+
+    def write(string)
+      @chunks << string.dup
+      string.size
+    end
+  end
+
+  class Nested
+    def to_json(*a)
+      {'inner' => [1, 2]}.to_json(*a)
+    end
+  end
+
+  class ThreadKey
+    attr_reader :threads
+
+    def initialize
+      @threads = []
+    end
+
+    def to_s
+      @threads << Thread.current
+      'key'
+    end
+  end
+
+  class SubHash < Hash; end
+  class SubString < String; end
+  class SubArray < Array; end
+
+  class Appender
+    def initialize(v)
+      @v = v
+    end
+
+    def append_json(state)
+      state.append('v' => @v)
+    end
+
+    def to_json(*a)
+      raise 'to_json should not be called'
+    end
+  end
+
+  class Rows
+    include Enumerable
+
+    def initialize(count)
+      @count = count
+    end
+
+    def each
+      @count.times { |i| yield 'id' => i }
+    end
+  end
+
+  def setup
+    @big = (1..5000).map { |i| {'id' => i, 'name' => "n#{i}", 'v' => [i]} }
+  end
+
+  def test_dump_writes_chunks
+    io = ChunkRecorder.new
+    assert_same io, JSON.dump(@big, io)
+    assert io.chunks.size > 1
+    assert io.chunks.all? { |c| c.size < 2 * 16384 }
+    assert_equal generate(@big), io.chunks.join
+  end
+
+  def test_generate_to
+    io = ChunkRecorder.new
+    PRETTY_STATE_PROTOTYPE.dup.generate_to(@big[0, 3], io)
+    assert_equal pretty_generate(@big[0, 3]), io.chunks.join
+    assert_raises(GeneratorError) { State.new.generate_to('x', io) }
+    assert_raises(TypeError) { State.new.generate_to([], Object.new) }
+    assert_raises(ArgumentError) { JSON.dump([[[1]]], io, 2) }
+  end
+
+  def test_generate_to_java_targets
+    stream = java.io.ByteArrayOutputStream.new
+    State.new.generate_to(@big, stream)
+    assert_equal generate(@big), String.from_java_bytes(stream.to_byte_array)
+
+    stream = java.io.ByteArrayOutputStream.new
+    channel = java.nio.channels.Channels.new_channel(stream)
+    State.new.generate_to(@big, channel)
+    assert_equal generate(@big), String.from_java_bytes(stream.to_byte_array)
+  end
+
+  def test_generate_into
+    buf = 'data: '
+    assert_same buf, JSON.generate(@big[0, 3], :into => buf)
+    assert_equal 'data: ' + generate(@big[0, 3]), buf
+    assert_same buf, JSON.generate({'a' => 1}, :into => buf)
+    assert_equal 'data: ' + generate(@big[0, 3]) + '{"a":1}', buf
+    assert_raises(GeneratorError) { JSON.generate([0.0 / 0], :into => buf) }
+    assert_raises(GeneratorError) { JSON.generate('x', :into => buf) }
+    assert_equal 'data: ' + generate(@big[0, 3]) + '{"a":1}', buf
+    buf = ''
+    State.new.generate_to([1], buf)
+    assert_equal '[1]', buf
+  end
+
+  def test_large_documents
+    strings = Array.new(60_000) { |i| 'x' * 20 + i.to_s }
+    assert_equal '[' + strings.map { |s| %Q("#{s}") }.join(',') + ']',
+      generate(strings)
+    assert_equal generate(strings), State.new.generate(strings)
+    JSON::Ext::Generator.clear_frozen_cache
+    frozen = Array.new(50_000) { 'abcdefghi'.freeze }.freeze
+    doc = ['f' * 700_000, frozen, frozen]
+    expected = '["' + 'f' * 700_000 + '",' +
+      (['[' + Array.new(50_000, '"abcdefghi"').join(',') + ']'] * 2).join(',') +
+      ']'
+    2.times do
+      assert_equal expected, generate(doc, :frozen_cache => true)
+    end
+    JSON::Ext::Generator.clear_frozen_cache
+  end
+
+  def test_reentrant_generation
+    json = generate([Nested.new, {'x' => Nested.new}])
+    assert_equal '[{"inner":[1,2]},{"x":{"inner":[1,2]}}]', json
+    assert_equal json, generate([Nested.new, {'x' => Nested.new}])
+  end
+
+  def test_core_subclasses
+    h = SubHash.new
+    h['a'] = SubArray[SubString.new('x'), 1.5]
+    assert_equal '{"a":["x",1.5]}', generate(h)
+    assert_equal '{"a":["x",1.5]}', h.to_json
+    SubString.class_eval do
+      def to_json(*) '"sub"' end
+    end
+    assert_equal '{"a":["sub",1.5]}', generate(h)
+    s = SubString.new('y')
+    def s.to_json(*) '"single"' end
+    assert_equal '["single","sub"]', generate([s, SubString.new('z')])
+    SubString.class_eval { remove_method :to_json }
+    assert_equal '{"a":["x",1.5]}', generate(h)
+  end
+
+  def test_append_json
+    data = [Appender.new(1), {'x' => Appender.new([Appender.new(nil)])}]
+    assert_equal '[{"v":1},{"x":{"v":[{"v":null}]}}]', generate(data)
+    assert_equal generate(data), data.to_json
+    assert_equal '{"v":1}', generate(Appender.new(1))
+    assert_equal "{\n  \"v\": 1\n}", pretty_generate(Appender.new(1))
+    assert_raises(GeneratorError) { State.new.append(1) }
+  end
+
+  def test_cached_keys
+    2.times do
+      assert_equal '{"a":1,"b\\n":2}', generate(:a => 1, :"b\n" => 2)
+      assert_equal '{"a":1,"b\\n":2}', generate('a' => 1, "b\n" => 2)
+      assert_equal '{"\\u00e9":1}',
+        generate({"\303\251" => 1}, :ascii_only => true)
+      assert_equal "{\"\303\251\":1}".unpack('C*'),
+        generate("\303\251" => 1).unpack('C*')
+    end
+    if defined?(::Encoding)
+      latin1 = "\303\251".force_encoding('ISO-8859-1')
+      assert_equal "{\"\303\203\302\251\":1}".unpack('C*'),
+        generate(latin1 => 1).unpack('C*')
+    end
+  end
+
+  def test_nested_pretty_layout
+    assert_equal "[\n  {\n    \"a\": {\n      \"b\": [\n        1\n      ]\n    }\n  }\n]",
+      pretty_generate([{'a' => {'b' => [1]}}])
+    assert_equal '[{"a":{"b":[1]}}]', generate([{'a' => {'b' => [1]}}])
+    state = State.new(:indent => "\t", :object_nl => "\n", :array_nl => "\n")
+    assert_equal "[\n\t{\n\t\t\"a\":1\n\t}\n]", state.generate([{'a' => 1}])
+    state.indent = ' '
+    assert_equal "[\n {\n  \"a\":1\n }\n]", state.generate([{'a' => 1}])
+  end
+
+  def test_frozen_state
+    state = State.new(:indent => '  ', :space => ' ', :object_nl => "\n",
+                      :array_nl => "\n", :max_nesting => 4).freeze
+    data = [{'a' => Nested.new}]
+    assert_equal pretty_generate(data), state.generate(data)
+    assert_equal 0, state.depth
+    assert_raises(NestingError) { state.generate([[[[[1]]]]]) }
+    assert_equal 0, state.depth
+    assert_raises(TypeError, RuntimeError) { state.indent = '' }
+    assert_raises(TypeError, RuntimeError) { state.depth = 1 }
+    assert_raises(TypeError, RuntimeError) { state.configure({}) }
+    threads = (1..4).map do
+      Thread.new { (1..50).map { state.generate(data) }.uniq }
+    end
+    threads.each { |t| assert_equal [pretty_generate(data)], t.value }
+  end
+
+  def test_shared_state_prototypes
+    for const in %w[SAFE FAST PRETTY DUMP]
+      assert JSON.const_get("#{const}_STATE_PROTOTYPE").frozen?, const
+    end
+    assert_same SAFE_STATE_PROTOTYPE, State.from_state(nil)
+    assert_equal '[1]', JSON.generate([1])
+    assert_equal '[1]', [1].to_json
+    assert_equal "[\n  1\n]", JSON.pretty_generate([1])
+    assert_equal '[NaN]', JSON.dump([JSON::NaN])
+    # a State is used as it is, with the options to_h doesn't list
+    state = State.new(:enumerables => true).freeze
+    assert_equal '[[1,2]]', JSON.generate([[1, 2].each], state)
+    assert_equal '{"a":1}', JSON.generate({'a' => 1}, :indent => '')
+  end
+
+  def test_concurrent_generation_from_frozen_state
+    state = State.new(:indent => '  ', :space => ' ', :object_nl => "\n",
+                      :array_nl => "\n", :max_nesting => 0,
+                      :parallel_threshold => 2000).freeze
+    config = state.to_h
+    deep = (1..40).inject('x') { |value, i| {"k#{i}" => [value]} }
+    docs = [deep, @big, {'a' => @big}, [Nested.new, {'b' => 1.5}]]
+    expected = docs.map { |doc| pretty_generate(doc, :max_nesting => 0) }
+    go = false
+    threads = (1..8).map do |n|
+      Thread.new do
+        Thread.pass until go
+        (0...20).map do |i|
+          k = (n + i) % docs.size
+          state.generate(docs[k]) == expected[k]
+        end
+      end
+    end
+    go = true
+    threads.each { |t| assert_equal [true], t.value.uniq }
+    assert_equal config, state.to_h
+  end
+
+  def test_parallel_generation
+    state = State.new(:parallel_threshold => 2000)
+    assert_equal 2000, state.parallel_threshold
+    assert_equal generate(@big), state.generate(@big)
+    hash = {}
+    @big.each { |h| hash["k#{h['id']}"] = h }
+    assert_equal generate(hash), state.generate(hash)
+    pretty = State.new(:indent => '  ', :space => ' ', :object_nl => "\n",
+                       :array_nl => "\n", :parallel_threshold => 2000)
+    assert_equal pretty_generate(@big), pretty.generate(@big)
+    mixed = @big + [Nested.new]
+    assert_equal generate(mixed), state.generate(mixed)
+    assert_raises(GeneratorError) { state.generate(@big + [0.0 / 0]) }
+    key = ThreadKey.new
+    keyed = @big + [{key => 1}]
+    assert_equal generate(keyed), state.generate(keyed)
+    assert_equal [Thread.current], key.threads.uniq
+    shallow = State.new(:parallel_threshold => 2000, :max_nesting => 3)
+    assert_raises(NestingError) { shallow.generate(@big + [[[[1]]]]) }
+    assert_equal 3, shallow.depth
+    4.times.map { Thread.new { state.generate(@big) } }.each(&:join)
+    group = java.lang.Thread.current_thread.thread_group
+    threads = java.lang.Thread[group.active_count].new
+    group.enumerate(threads)
+    workers = threads.select { |t| t && t.name =~ /\Ajson-generator-/ }
+    assert workers.size <= java.lang.Runtime.runtime.available_processors
+  end
+
+  def test_fragments
+    block = JSON::Ext::Fragment.new('{"id": 1, "tags": ["a"]}')
+    assert block.frozen?
+    assert_equal '{"id": 1, "tags": ["a"]}', block.to_s
+    assert_equal '[{"id": 1, "tags": ["a"]},{"x":{"id": 1, "tags": ["a"]}}]',
+      generate([block, {'x' => block}])
+    assert_equal '{"id": 1, "tags": ["a"]}', block.to_json
+    assert_equal ['a'],
+      JSON.parse(pretty_generate('b' => [block]))['b'][0]['tags']
+    valid = [' [1, -2.5e3, "\\u00e9", true, {"a": {}}, []] ', '"x"', '0']
+    valid.each do |json|
+      assert_equal json, JSON::Ext::Fragment.new(json, :validate => true).to_s
+    end
+    invalid = ['', '[1,]', '{"a" 1}', '{"a":1', '01', '"\\x"', '[1] 2', 'nul']
+    invalid.each do |json|
+      assert_raises(ParserError) do
+        JSON::Ext::Fragment.new(json, :validate => true)
+      end
+      assert_equal json, JSON::Ext::Fragment.new(json).to_s
+    end
+  end
+
+  def test_frozen_cache
+    JSON::Ext::Generator.clear_frozen_cache
+    config = {'name' => 'x'.freeze, 'tags' => ['a'.freeze, 1.5].freeze}.freeze
+    mutable = {'tags' => ['a']}.freeze
+    state = State.new(:frozen_cache => true)
+    assert state.frozen_cache?
+    3.times do
+      assert_equal generate([config, mutable]), state.generate([config, mutable])
+    end
+    stats = JSON::Ext::Generator.frozen_cache_stats
+    assert_equal 2, stats[:hits]
+    assert_equal 1, stats[:misses]
+    assert_equal '{"a":{"name":"x","tags":["a",1.5]}}',
+      generate({'a' => config}, :frozen_cache => true, :ascii_only => true)
+    assert_equal 2, JSON::Ext::Generator.frozen_cache_stats[:misses]
+    assert_raises(NestingError) do
+      generate([[config]], :frozen_cache => true, :max_nesting => 3)
+    end
+    assert_equal pretty_generate([config]),
+      pretty_generate([config], :frozen_cache => true)
+    size = JSON::Ext::Generator.frozen_cache_stats[:size]
+    long = ('y' * 200).freeze
+    2.times do
+      assert_equal generate(['x'.freeze, long]),
+        generate(['x'.freeze, long], :frozen_cache => true)
+    end
+    assert_equal size + 1, JSON::Ext::Generator.frozen_cache_stats[:size]
+    JSON::Ext::Generator.clear_frozen_cache
+    assert_equal({:hits => 0, :misses => 0, :size => 0},
+      JSON::Ext::Generator.frozen_cache_stats)
+  end
+
+  def test_writer
+    data = {'a' => [1, {'b' => nil}, []], 'c' => {}, 'd' => 'e'}
+    write = lambda do |w|
+      w.start_object
+      w.key('a').start_array.value(1).start_object.key(:b).value(nil)
+      w.end_object.start_array.end_array.end_array
+      w.key('c').start_object.end_object
+      w.key('d').value('e').end_object
+    end
+    out = ''
+    write.call(w = JSON::Ext::Writer.new(out))
+    assert w.complete?
+    assert_equal generate(data), out
+    out = ''
+    write.call(JSON::Ext::Writer.new(out, PRETTY_STATE_PROTOTYPE))
+    assert_equal pretty_generate(data), out
+    io = ChunkRecorder.new
+    w = JSON::Ext::Writer.new(io, :indent => '  ', :array_nl => "\n")
+    w.start_array.value(data).raw('{"x": 1}')
+    w.raw(JSON::Ext::Fragment.new('"y"')).end_array
+    assert io.chunks.empty?
+    w.flush
+    assert_equal [generate([data, {'x' => 1}, 'y'],
+      :indent => '  ', :array_nl => "\n").sub('{"x":1}', '{"x": 1}')],
+      io.chunks
+  end
+
+  def test_writer_misuse
+    w = JSON::Ext::Writer.new('')
+    assert_raises(GeneratorError) { w.key('a') }
+    assert_raises(GeneratorError) { w.end_array }
+    w.start_object
+    assert_raises(GeneratorError) { w.value(1) }
+    assert_raises(GeneratorError) { w.end_array }
+    w.key('a')
+    assert_raises(GeneratorError) { w.key('b') }
+    assert_raises(GeneratorError) { w.end_object }
+    w.value(1).end_object
+    assert_raises(GeneratorError) { w.value(2) }
+    out = ''
+    w = JSON::Ext::Writer.new(out, :max_nesting => 1)
+    w.start_array
+    assert_raises(NestingError) { w.start_array }
+    assert_raises(GeneratorError) { w.value(0.0 / 0) }
+    w.value(1).end_array
+    assert_equal '[1]', out
+  end
+
+  def test_enumerables
+    state = State.new(:enumerables => true)
+    assert state.enumerables?
+    assert !State.new.enumerables?
+    enum = (1..3).each_with_index
+    assert_equal '[[1,0],[2,1],[3,2]]', state.generate(enum)
+    assert_equal '{"a":[1,2,3],"b":[]}',
+      state.generate('a' => (1..3).each, 'b' => [].each)
+    assert_match(/Enumerator/, generate([[1].each]))
+    record = Struct.new(:a, :b).new(1, 2)
+    assert_equal generate([record]), state.generate([record])
+    assert_equal generate([1..2]), state.generate([1..2])
+    assert_equal '[[1,2],[1,2]]', state.generate([record.each, (1..2).each])
+    assert_equal '["x"]', state.generate([Nested.new].map { 'x' }.each)
+    assert_equal '[{"inner":[1,2]}]', state.generate([Nested.new].each)
+    pretty = State.new(:indent => '  ', :space => ' ', :object_nl => "\n",
+                       :array_nl => "\n", :enumerables => true)
+    assert_equal pretty_generate('a' => [[1], {}]),
+      pretty.generate('a' => [[1].each, {}].each)
+    io = ChunkRecorder.new
+    state.generate_to(Rows.new(5000).to_enum, io)
+    assert io.chunks.size > 1
+    assert_equal 5000, JSON.parse(io.chunks.join).size
+    assert_raises(NestingError) do
+      generate([[1].each], :enumerables => true, :max_nesting => 1)
+    end
+  end
+
+  def test_generate_lines
+    records = [{'a' => [1, "x\ny"]}, 'b', nil, Nested.new]
+    lines = records.map { |r| generate([r])[1..-2] + "\n" }.join
+    out = 'log: '
+    assert_same out, JSON::Ext::Generator.generate_lines(records, out)
+    assert_equal 'log: ' + lines, out
+    out = ''
+    JSON::Ext::Generator.generate_lines(records.each, out,
+      PRETTY_STATE_PROTOTYPE)
+    assert_equal lines, out
+    io = ChunkRecorder.new
+    JSON::Ext::Generator.generate_lines(Rows.new(5000), io, :ascii_only => true)
+    assert io.chunks.size > 1
+    assert io.chunks.all? { |c| c[-1, 1] == "\n" }
+    assert_equal Rows.new(5000).to_a,
+      io.chunks.join.split("\n").map { |l| JSON.parse(l) }
+    io = ChunkRecorder.new
+    assert_raises(GeneratorError) do
+      JSON::Ext::Generator.generate_lines([[1], [0.0 / 0], [2]], io)
+    end
+    assert_equal ["[1]\n"], io.chunks
+  end
+
+  class Point
+    attr_reader :y
+
+    def initialize(x, y)
+      @x, @y = x, y
+    end
+
+    def label
+      "pé"
+    end
+
+    def to_json(*)
+      raise 'to_json should not be called'
+    end
+  end
+
+  Pair = Struct.new(:left, :right)
+
+  def test_registered_serializers
+    JSON::Ext::Generator.register_serializer(Point, :@x, 'y', :label)
+    JSON::Ext::Generator.register_serializer(Pair, :right, :left, :size)
+    p = Point.new(1, [Point.new(nil, 2)])
+    expected = {'x' => 1, 'y' => [{'x' => nil, 'y' => 2, 'label' => "pé"}],
+      'label' => "pé"}
+    assert_equal generate(expected), generate(p)
+    assert_equal pretty_generate('a' => expected), pretty_generate('a' => p)
+    assert_equal generate(expected, :ascii_only => true),
+      generate(p, :ascii_only => true)
+    assert_equal generate([{'right' => 'b',
+      'left' => {'x' => 3, 'y' => nil, 'label' => "pé"}, 'size' => 2}]),
+      generate([Pair.new(Point.new(3, nil), 'b')])
+    assert_raises(NestingError) { generate([p], :max_nesting => 3) }
+    assert_raises(TypeError) do
+      JSON::Ext::Generator.register_serializer(Point, 1)
+    end
+    assert_raises(ArgumentError) do
+      JSON::Ext::Generator.register_serializer(Point, '@')
+    end
+  ensure
+    JSON::Ext::Generator.unregister_serializer(Point)
+    JSON::Ext::Generator.unregister_serializer(Pair)
+    assert_raises(RuntimeError) { generate(Point.new(1, 2)) }
+    assert !JSON::Ext::Generator.unregister_serializer(Point)
+  end
+
+  def test_numbers_match_to_s
+    numbers = [0.0, -0.0, 1.0, -2.5, 0.1, 0.0001, 9.5e-05, 123.456,
+      12345678901234.5, 1e14, 0.1 + 0.2, 1.0 / 3, 1e100, 5e-324,
+      0, -7, 2**62, -2**63, 2**70, -2**70]
+    numbers.each do |n|
+      assert_equal "[#{n}]", generate([n])
+    end
+  end
+
+  if defined?(::Encoding)
+    def test_transcoded_strings
+      s = "caf\u00e9 \u20ac \u{1f600}\n"
+      expected = generate([s])
+      %w[UTF-16BE UTF-16LE].each do |e|
+        assert_equal expected, generate([s.encode(e)])
+      end
+      assert_equal '["caf\u00e9"]',
+        generate(["caf\u00e9".encode('ISO-8859-1')], :ascii_only => true)
+      broken = "\xd8\x00".force_encoding('UTF-16BE')
+      assert_raises(Encoding::InvalidByteSequenceError) { generate([broken]) }
+    end
+  end
+end
@@ -0,0 +1,227 @@
+#!/usr/bin/env ruby
+# -*- coding: utf-8 -*-
+
+require 'test/unit'
+require 'json/ext'
+
+class TestJjrbParser < Test::Unit::TestCase
+  # Tests for parser options that are specific to JSON-JRuby.
+
+  include JSON
+
+  Event = Struct.new(:id, :ts, :name, :tags)
+
+  def test_record_class
+    event = parse('{"id":1,"ts":2.5,"name":"a","tags":["x"]}',
+                  :record_class => Event)
+    assert_equal Event.new(1, 2.5, 'a', ['x']), event
+  end
+
+  def test_record_skips_unknown_keys
+    event = parse('{"junk":{"a":[1,{"b":null}]},"id":7,"more":"x"}',
+                  :record_class => Event)
+    assert_equal Event.new(7), event
+    assert_raises(ParserError) do
+      parse('{"junk":[1,}],"id":7}', :record_class => Event)
+    end
+    assert_raises(NestingError) do
+      parse('{"junk":[[[1]]]}', :record_class => Event, :max_nesting => 3)
+    end
+  end
+
+  def test_record_escaped_keys
+    event = parse('{"na\\u006de":"b"}', :record_class => Event)
+    assert_equal 'b', event.name
+  end
+
+  def test_record_depth
+    events = parse('[{"id":1},{"id":2,"extra":{}}]',
+                   :record_class => Event, :record_depth => 2)
+    assert_equal [Event.new(1), Event.new(2)], events
+    event = parse('{"id":1,"tags":{"id":2}}', :record_class => Event)
+    assert_equal({'id' => 2}, event.tags)
+  end
+
+  def test_record_types
+    types = {:id => Integer, :ts => Float, :name => String}
+    event = parse('{"id":1,"ts":3,"name":"x","tags":4}', :record_class => Event,
+                  :record_types => types)
+    assert_equal 1, event.id
+    assert_kind_of Float, event.ts
+    assert_equal 3.0, event.ts
+    assert_equal 'x', event.name
+    assert_equal 4, event.tags
+    event = parse('{"id":null,"ts":null,"name":null}', :record_class => Event,
+                  :record_types => types)
+    assert_equal Event.new, event
+    ['{"id":1.5}', '{"id":"1"}', '{"ts":"x"}', '{"ts":[1.5]}',
+     '{"name":4}', '{"name":true}'].each do |source|
+      assert_raises(ParserError, source) do
+        parse(source, :record_class => Event, :record_types => types)
+      end
+    end
+    assert_raises(ArgumentError) do
+      parse('{}', :record_class => Event, :record_types => {:nope => Float})
+    end
+    assert_raises(TypeError) { parse('{}', :record_class => Hash) }
+  end
+
+  def test_compact_object_class
+    source = '{"a":1,"b":[{"c":null}],"a":2,' +
+      (1..20).map { |i| %{"k#{i}":#{i}} }.join(',') + '}'
+    object = parse(source, :object_class => JSON::Ext::CompactHash)
+    assert_kind_of JSON::Ext::CompactHash, object
+    assert object.frozen?
+    assert_equal 2, object['a']
+    assert_equal 20, object['k20']
+    assert_nil object['nope']
+    assert_equal ['a', 'b', 'k1'], object.keys[0, 3]
+    assert_equal 22, object.size
+    assert_kind_of JSON::Ext::CompactHash, object['b'][0]
+    assert object.key?('k7')
+    assert_raises(IndexError) { object.fetch('nope') }
+    assert_equal 3, object.fetch('nope', 3)
+    assert_kind_of Hash, object.to_hash
+    assert_equal object.keys, object.to_hash.keys
+    assert_equal parse(source), parse(generate(object))
+    assert_equal parse('{"x":1}', :object_class => JSON::Ext::CompactHash),
+                 {'x' => 1}
+    assert_equal [:a], parse('{"a":{}}', :symbolize_names => true,
+                             :object_class => JSON::Ext::CompactHash).keys
+    assert_equal [['x', 1]], parse('{"x":1}',
+      :object_class => JSON::Ext::CompactHash).map { |k, v| [k, v] }
+  end
+
+  def test_compact_object_equality
+    source = '{"x":1,"y":[2,{"z":3.0}]}'
+    compact = parse(source, :object_class => JSON::Ext::CompactHash)
+    hash = parse(source)
+    assert compact == hash
+    assert compact == parse(source, :object_class => JSON::Ext::CompactHash)
+    assert compact != parse('{"x":1}')
+    assert compact.eql?(hash)
+    assert !compact.eql?(parse('{"x":1.0,"y":[2,{"z":3.0}]}'))
+    assert_equal hash.hash, compact.hash
+    assert_equal 1, {hash => 1}[compact]
+    # Hash#== and Hash#eql? only defer to to_hash since JRuby 1.6
+    if (JRUBY_VERSION.split('.').map { |n| n.to_i } <=> [1, 6]) >= 0
+      assert hash == compact
+      assert hash.eql?(compact)
+      assert_equal 1, {compact => 1}[hash]
+    end
+  end
+
+  def test_numeric_arrays
+    source = '{"i":[1, -2,3 ],"f":[1.5,2e3,-0.0],"mixed":[1,2.5],' +
+      '"empty":[],"big":[12345678901234567890],"nested":[[1],[2.5]]}'
+    object = parse(source, :numeric_arrays => true)
+    assert_kind_of JSON::Ext::NumericArray, object['i']
+    assert_kind_of JSON::Ext::NumericArray, object['f']
+    assert_kind_of JSON::Ext::NumericArray, object['nested'][1]
+    assert_kind_of Array, object['mixed']
+    assert_kind_of Array, object['empty']
+    assert_kind_of Array, object['big']
+    assert object['i'].frozen?
+    assert_equal [1, -2, 3], object['i'].to_a
+    assert_equal 3, object['i'][-1]
+    assert_equal [1, -2], object['i'][0, 2]
+    assert_nil object['i'][3]
+    assert_equal [2, -4, 6], object['i'].map { |x| x * 2 }
+    assert_kind_of Float, object['f'][1]
+    assert_equal object['f'], [1.5, 2000.0, -0.0]
+    assert_equal generate(parse(source)), generate(object)
+    assert_equal pretty_generate(parse(source)), pretty_generate(object)
+  end
+
+  def test_load_proc
+    source = '{"a":[1,{"b":null}],"c":"d","e":[1.5,2]}'
+    seen = []
+    result = JSON.load(source, lambda { |x| seen << x })
+    expected = []
+    JSON.recurse_proc(parse(source)) { |x| expected << x }
+    assert_equal expected, seen
+    assert_equal parse(source), result
+    calls = []
+    parse('[1,{"a":2}]', :proc => lambda { |x| calls << x })
+    assert_equal [1, 'a', 2, {'a' => 2}, [1, {'a' => 2}]], calls
+    [:ragel, :descent].each do |engine|
+      calls = []
+      result = parse('[[1,2],[1.5]]', :numeric_arrays => true,
+        :engine => engine, :proc => lambda { |x| calls << x })
+      assert_equal [1, 2, [1, 2], 1.5, [1.5], [[1, 2], [1.5]]], calls
+      assert_kind_of Array, result[0]
+    end
+  end
+
+  def test_engines_agree_on_fixtures
+    fixtures.each do |source|
+      assert_same_outcome source
+      assert_same_outcome source, :allow_nan => true, :max_nesting => 3
+    end
+  end
+
+  def test_engines_agree_on_fuzzed_input
+    srand 4627
+    sources = fixtures + [
+      '{"a" : [1, -0, 2.5e3, -1E-2, "\\u00e9\\n"], "b":{"c":null}}',
+      "[true,false , /* c */ null // cpp\n, NaN, Infinity, -Infinity]",
+      '{"id":1,"ts":2.0,"name":"x","skip":{"a":[[]]},"tags":[]}',
+      '[[1, 2, 3], [-1.5, 2e-3, 0.0], [1, 2.0], [ 4 ,5 ]]',
+      '["café €", {"é": "😀"}]',
+    ]
+    2000.times do
+      source = mutate(sources[rand(sources.size)])
+      assert_same_outcome source
+      assert_same_outcome source, :allow_nan => true, :max_nesting => 4,
+        :symbolize_names => true
+      assert_same_outcome source, :record_class => Event,
+        :record_types => {:id => Integer, :ts => Float, :name => String}
+      assert_same_outcome source, :object_class => JSON::Ext::CompactHash
+      assert_same_outcome source, :numeric_arrays => true
+    end
+  end
+
+  private
+
+  def fixtures
+    Dir[File.join(File.dirname(__FILE__), 'fixtures', '*.json')].sort.map do
+      |f| File.read(f)
+    end
+  end
+
+  # single bytes of JSON syntax, whole UTF-8 sequences (é, €, 😀), and
+  # truncated or stray parts of them
+  FUZZ_PIECES = "{}[]\":,/*\\ \t\n0123456789-+.eEnulltruefalseNaInfity".
+    split(//) + [
+      [0xc3, 0xa9], [0xe2, 0x82, 0xac], [0xf0, 0x9f, 0x98, 0x80],
+      [0xc3], [0xe2, 0x82], [0xf0, 0x9f, 0x98], [0xa9], [0x80, 0x80], [0xff],
+    ].map { |bytes| bytes.pack('C*') }
+
+  def mutate(source)
+    source = source.dup
+    source.force_encoding('ASCII-8BIT') if source.respond_to?(:force_encoding)
+    (1 + rand(3)).times do
+      pos = rand(source.size + 1)
+      piece = FUZZ_PIECES[rand(FUZZ_PIECES.size)]
+      case rand(3)
+      when 0 then source[pos, 1] = piece
+      when 1 then source[pos, 0] = piece
+      else        source[pos, 1] = ''
+      end
+    end
+    source
+  end
+
+  def outcome(source, opts)
+    [:ok, parse(source, opts).inspect]
+  rescue StandardError => e
+    [:error, e.class]
+  end
+
+  def assert_same_outcome(source, opts = {})
+    expected = outcome(source, opts.merge(:engine => :ragel))
+    actual = outcome(source, opts.merge(:engine => :descent))
+    assert_equal expected, actual,
+      "engines disagree on #{source.inspect} with #{opts.inspect}"
+  end
+end
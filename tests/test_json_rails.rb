@@ -138,6 +138,23 @@ def test_raw_strings
     assert_equal raw, raw_again
   end
 
+  def test_raw64_strings
+    raw = ''
+    raw.respond_to?(:encode!) and raw.encode!(Encoding::ASCII_8BIT)
+    0.upto(255) { |i| raw << i }
+    [raw, raw[0, 1], raw[0, 2], raw[0, 3], ''].each do |s|
+      json = s.to_json_raw64
+      assert_equal({ 'json_class' => 'String', 'raw64' => [s].pack('m').delete("\n") },
+        s.to_json_raw64_object)
+      assert_match /\A\{"json_class":"String","raw64":"[A-Za-z0-9+\/=]*"\}\Z/, json
+      assert_equal s, JSON.parse(json)
+    end
+    assert_equal 'ab', JSON.parse('{"json_class":"String","raw64":"YW\nI"}')
+    assert_raises(ArgumentError) do
+      JSON.parse('{"json_class":"String","raw64":"Y*"}')
+    end
+  end
+
   def test_symbol
     assert_equal '"foo"', :foo.to_json #  we don't want an object here
   end